@@ -20,6 +20,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 
+import org.eclipse.californium.tools.coapbench.FloodGenerator;
+import org.eclipse.californium.tools.coapbench.Impairment;
+import org.eclipse.californium.tools.coapbench.ImpairmentProxy;
 import org.eclipse.californium.tools.coapbench.VirtualDeviceManager;
 
 
@@ -30,11 +33,16 @@ public class CoapBench {
 	// Modes: normal, master, slave
 	public static final String MASTER = "-master";
 	public static final String SLAVE = "-slave";
+	public static final String PROXY = "-proxy";
+	public static final String OVERLOAD = "-overload";
+	public static final String FLOOD = "-flood";
 
 	// Defaults
 	public static final int DEFAULT_CLIENTS = 1;
 	public static final int DEFAULT_SERVERS = 1;
 	public static final int DEFAULT_TIME = 30; // [s]
+	public static final int DEFAULT_INTERVAL = 1000; // [ms]
+	public static final double DEFAULT_FACTOR = 2;
 
 	public static final String DEFAULT_MASTER_ADDRESS = "localhost";
 	public static final int DEFAULT_MASTER_PORT = 58888; 
@@ -48,6 +56,12 @@ public class CoapBench {
 					mainMaster(args);
 				} else if (args[0].equals(SLAVE)) {
 					mainSlave(args);
+				} else if (args[0].equals(PROXY)) {
+					mainProxy(args);
+				} else if (args[0].equals(OVERLOAD)) {
+					mainOverload(args);
+				} else if (args[0].equals(FLOOD)) {
+					mainFlood(args);
 				} else {
 					mainBench(args);
 				}
@@ -65,6 +79,7 @@ public class CoapBench {
 		String bindAddr = null;
 		String clients = ""+DEFAULT_CLIENTS;
 		int time = DEFAULT_TIME;
+		int engines = 0;
 		int index = 0;
 		boolean withLatency = false;
 		while (index < args.length) {
@@ -76,6 +91,8 @@ public class CoapBench {
 				time = Integer.parseInt(args[index+1]);
 			} else if ("-b".equals(arg)) {
 				bindAddr = args[index+1];
+			} else if ("-e".equals(arg)) {
+				engines = Integer.parseInt(args[index+1]);
 			} else if ("-latency".equals(arg)) {
 				withLatency = true; index++; continue;
 			} else if ("-h".equals(arg)) {
@@ -110,6 +127,7 @@ public class CoapBench {
 		int[] series = convertSeries(clients);
 		VirtualDeviceManager manager = new VirtualDeviceManager(uri, bindSAddr);
 		if (withLatency) manager.setEnableLatency(true);
+		manager.setEngineCount(engines);
 		manager.runConcurrencySeries(series, time*1000);
 		
 //		Thread.sleep(time*1000 + 1000);
@@ -158,6 +176,175 @@ public class CoapBench {
 		slave.start();
 	}
 	
+	public static void mainProxy(String[] args) throws Exception {
+		int port = ImpairmentProxy.DEFAULT_PORT;
+		long seed = System.nanoTime();
+		int maxPackets = ImpairmentProxy.DEFAULT_MAX_PACKETS;
+		String target = null;
+		Impairment impairment = new Impairment(seed);
+		int index = 1;
+		while (index < args.length) {
+			String arg = args[index];
+			if ("-p".equals(arg)) {
+				port = Integer.parseInt(args[index+1]);
+			} else if ("-loss".equals(arg)) {
+				impairment.setLoss(Double.parseDouble(args[index+1]));
+			} else if ("-burst".equals(arg)) {
+				impairment.setBurst(Double.parseDouble(args[index+1]));
+			} else if ("-delay".equals(arg)) {
+				impairment.setDelay(Long.parseLong(args[index+1]));
+			} else if ("-jitter".equals(arg)) {
+				impairment.setJitter(Long.parseLong(args[index+1]));
+			} else if ("-dist".equals(arg)) {
+				impairment.setDistribution(Impairment.Distribution.valueOf(args[index+1].toUpperCase()));
+			} else if ("-dup".equals(arg)) {
+				impairment.setDuplicate(Double.parseDouble(args[index+1]));
+			} else if ("-reorder".equals(arg)) {
+				impairment.setReorder(Double.parseDouble(args[index+1]));
+			} else if ("-rate".equals(arg)) {
+				impairment.setRate(Long.parseLong(args[index+1]));
+			} else if ("-queue".equals(arg)) {
+				impairment.setQueue(Long.parseLong(args[index+1]));
+			} else if ("-packets".equals(arg)) {
+				maxPackets = Integer.parseInt(args[index+1]);
+			} else if ("-seed".equals(arg)) {
+				seed = Long.parseLong(args[index+1]);
+			} else if (index == args.length - 1) {
+				// The last argument is the target address
+				target = arg;
+				index++; continue;
+			} else {
+				System.err.println("Unknwon arg "+arg);
+				printUsage();
+				return;
+			}
+			index += 2;
+		}
+		if (target == null) {
+			System.err.println("Error: No target specified");
+			printUsage();
+			return;
+		}
+		
+		URI uri = new URI(target.contains("://") ? target : "coap://" + target);
+		InetSocketAddress targetAddr = new InetSocketAddress(uri.getHost(), uri.getPort() == -1 ? 5683 : uri.getPort());
+		
+		// both directions get the same conditions, but independent state
+		Impairment upstream = impairment.copy(seed);
+		Impairment downstream = impairment.copy(seed + 1);
+		final ImpairmentProxy proxy = new ImpairmentProxy(new InetSocketAddress(port), targetAddr, upstream, downstream, maxPackets);
+		proxy.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				proxy.stop();
+			}
+		});
+	}
+	
+	/**
+	 * Measures the capacity of the server with closed-loop clients, and then
+	 * offers a multiple of it with clients that send one request per
+	 * interval. A server with admission control should keep its goodput at
+	 * the capacity instead of collapsing under retransmissions.
+	 */
+	public static void mainOverload(String[] args) throws Exception {
+		String target = null;
+		int clients = DEFAULT_CLIENTS;
+		int time = DEFAULT_TIME;
+		int interval = DEFAULT_INTERVAL;
+		double factor = DEFAULT_FACTOR;
+		int engines = 0;
+		int index = 1;
+		while (index < args.length) {
+			String arg = args[index];
+			if ("-c".equals(arg)) {
+				clients = Integer.parseInt(args[index+1]);
+			} else if ("-t".equals(arg)) {
+				time = Integer.parseInt(args[index+1]);
+			} else if ("-i".equals(arg)) {
+				interval = Integer.parseInt(args[index+1]);
+			} else if ("-f".equals(arg)) {
+				factor = Double.parseDouble(args[index+1]);
+			} else if ("-e".equals(arg)) {
+				engines = Integer.parseInt(args[index+1]);
+			} else if (index == args.length - 1) {
+				// The last argument is the target address
+				target = arg;
+				index++; continue;
+			} else {
+				System.err.println("Unknwon arg "+arg);
+				printUsage();
+				return;
+			}
+			index += 2;
+		}
+		if (target == null) {
+			System.err.println("Error: No target specified");
+			printUsage();
+			return;
+		}
+		
+		VirtualDeviceManager manager = new VirtualDeviceManager(new URI(target));
+		manager.setEngineCount(engines);
+		manager.start(clients, time*1000);
+		Thread.sleep(time*1000 + 1000);
+		float capacity = manager.getThroughput();
+		
+		int overload = (int) Math.ceil(factor * capacity * interval / 1000);
+		manager.log(String.format("Capacity %.2f/s with %d clients, offering %.1fx with %d clients every %d ms",
+				capacity, clients, factor, overload, interval));
+		Thread.sleep(5*1000); // let the server drain
+		manager.setInterval(interval);
+		manager.start(overload, time*1000);
+		Thread.sleep(time*1000 + 1000);
+		manager.log(String.format("Overload %.1fx: goodput %.2f/s (%.0f%% of capacity), throughput %.2f/s, rejected %d",
+				factor, manager.getGoodput(), 100 * manager.getGoodput() / capacity, manager.getThroughput(), manager.getRejected()));
+		System.exit(0);
+	}
+	
+	/**
+	 * Floods the server with NON requests from many sockets without waiting
+	 * for the responses, and reports how many responses come back per second,
+	 * i.e., the receive throughput of the server.
+	 */
+	public static void mainFlood(String[] args) throws Exception {
+		String target = null;
+		int sockets = FloodGenerator.DEFAULT_SOCKETS;
+		int time = DEFAULT_TIME;
+		int engines = 0;
+		int ports = 1;
+		int index = 1;
+		while (index < args.length) {
+			String arg = args[index];
+			if ("-c".equals(arg)) {
+				sockets = Integer.parseInt(args[index+1]);
+			} else if ("-t".equals(arg)) {
+				time = Integer.parseInt(args[index+1]);
+			} else if ("-e".equals(arg)) {
+				engines = Integer.parseInt(args[index+1]);
+			} else if ("-ports".equals(arg)) {
+				ports = Integer.parseInt(args[index+1]);
+			} else if (index == args.length - 1) {
+				// The last argument is the target address
+				target = arg;
+				index++; continue;
+			} else {
+				System.err.println("Unknwon arg "+arg);
+				printUsage();
+				return;
+			}
+			index += 2;
+		}
+		if (target == null) {
+			System.err.println("Error: No target specified");
+			printUsage();
+			return;
+		}
+		
+		new FloodGenerator(new URI(target), sockets, ports, engines).run(time);
+		System.exit(0);
+	}
+	
 //	private static int[] convertSeries(String clientSeries) {
 //		// clientSeries is in format <from>:<step>:<to>
 //		int from = 0;
@@ -197,7 +384,7 @@ public class CoapBench {
 	public static void printUsage() {
 		System.out.println(
 				"SYNOPSIS"
-				+ "\n    CoAPBench [[OPTIONS] URI | -master OPTIONS | -slave OPTIONS] [-v]" 
+				+ "\n    CoAPBench [[OPTIONS] URI | -master OPTIONS | -slave OPTIONS | -proxy OPTIONS TARGET | -overload OPTIONS URI | -flood OPTIONS URI] [-v]" 
 				+ "\n"
 				+ "\nURI: The target URI to benchmark"
 				+ "\n"
@@ -209,11 +396,47 @@ public class CoapBench {
 				+ "\n            Limit the duration of the benchmark to TIME seconds (default is " + DEFAULT_TIME + ")."
 				+ "\n    -b ADDRESS"
 				+ "\n            Bind the clients to the specified local address (by default the system chooses)."
+				+ "\n    -e ENGINES"
+				+ "\n            The number of threads the clients are multiplexed on (default is one per core)."
 				+ "\n"
 				+ "\nOPTIONS for the master are:"
 				+ "\n    -p PORT"
 				+ "\n            The port on which the master waits for slaves."
 				+ "\n"
+				+ "\nOPTIONS for the proxy are (followed by the TARGET address):"
+				+ "\n    -p PORT"
+				+ "\n            The port on which the proxy receives from the clients (default is " + ImpairmentProxy.DEFAULT_PORT + ")."
+				+ "\n    -loss P, -burst N"
+				+ "\n            Drop the fraction P of the datagrams in bursts of N datagrams on average (default is 0 and 1)."
+				+ "\n    -delay MS, -jitter MS, -dist uniform|normal|pareto"
+				+ "\n            Delay the datagrams by MS with the specified jitter and distribution (default is uniform)."
+				+ "\n    -dup P"
+				+ "\n            Duplicate the fraction P of the datagrams."
+				+ "\n    -reorder P"
+				+ "\n            Forward the fraction P of the datagrams without delay, i.e., before earlier ones."
+				+ "\n    -rate BITS, -queue MS"
+				+ "\n            Limit the bandwidth to BITS per second with a queue of MS (default is unlimited and 100)."
+				+ "\n    -packets N"
+				+ "\n            The maximum number of datagrams held back at once (default is " + ImpairmentProxy.DEFAULT_MAX_PACKETS + ")."
+				+ "\n    -seed N"
+				+ "\n            The seed for the random decisions to reproduce a run."
+				+ "\n"
+				+ "\nOPTIONS for the overload scenario are (followed by the URI):"
+				+ "\n    -c CONCURRENCY, -t TIME, -e ENGINES"
+				+ "\n            As above, for the measurement of the capacity and for the overload."
+				+ "\n    -f FACTOR"
+				+ "\n            Offer FACTOR times the measured capacity (default is " + DEFAULT_FACTOR + ")."
+				+ "\n    -i MS"
+				+ "\n            The interval between the requests of one client under overload (default is " + DEFAULT_INTERVAL + ")."
+				+ "\n"
+				+ "\nOPTIONS for the flood are (followed by the URI):"
+				+ "\n    -c SOCKETS"
+				+ "\n            The number of sockets, i.e., source ports, that send NON requests without waiting (default is " + FloodGenerator.DEFAULT_SOCKETS + ")."
+				+ "\n    -t TIME, -e ENGINES"
+				+ "\n            As above."
+				+ "\n    -ports N"
+				+ "\n            Spread the sockets over N consecutive ports from the port of the URI, for servers without SO_REUSEPORT (default is 1)."
+				+ "\n"
 				+ "\nOPTIONS for the slave are:"
 				+ "\n    -a ADDRESS"
 				+ "\n            The address of the master."
@@ -231,6 +454,15 @@ public class CoapBench {
 				+ "\n"
 				+ "\nStart a slave which connects with the specified master"
 				+ "\n    java -jar coapbench.jar -slave -a 192.168.1.33 -p 8888"
+				+ "\n"
+				+ "\nRelay port 5684 to a local server with 5% loss and 100+/-20 ms delay"
+				+ "\n    java -jar coapbench.jar -proxy -p 5684 -loss 0.05 -delay 100 -jitter 20 localhost:5683"
+				+ "\n"
+				+ "\nMeasure the capacity with 50 clients and offer twice as much, e.g., to a server with -queue 100"
+				+ "\n    java -jar coapbench.jar -overload -c 50 -t 30 coap://localhost:5683/fibonacci?n=25"
+				+ "\n"
+				+ "\nMeasure the receive throughput of a server, e.g., one started with -sockets 4, with 64 flows"
+				+ "\n    java -jar coapbench.jar -flood -c 64 -t 10 coap://localhost:5683/hello"
 			);
 		// TODO: add parameters for methods (GET, POST, ...), payload, checks, and logfile
 		// TODO: stepwise increase
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+
+/**
+ * Floods a server with NON requests from many sockets and counts the
+ * responses. Unlike the virtual clients, the senders do not wait for the
+ * responses, so that the receive path of the server is the bottleneck and
+ * the response rate is its receive throughput.
+ * <p>
+ * Every socket has its own source port, so that a server that receives on N
+ * sockets with SO_REUSEPORT (ExampleServer and ResourceDirectoryServer with
+ * <code>-sockets N</code>) sees the flows spread over all of them. For a
+ * server without SO_REUSEPORT, which binds N consecutive ports instead, the
+ * sockets are spread over <code>ports</code> ports from the port of the URI.
+ * A socket is replaced by one with a new source port when its MIDs wrap, so
+ * that the deduplication of the server does not take the requests for
+ * duplicates.
+ * <p>
+ * The sockets are multiplexed on a few engine threads, which send one
+ * request per socket in turn and drain the responses in between.
+ */
+public class FloodGenerator {
+
+	public static final int DEFAULT_SOCKETS = 64;
+	public static final long REPORT_INTERVAL = 1; // [s]
+
+	private final InetSocketAddress[] targets;
+	private final byte[] prototype;
+	private final int sockets;
+	private final int engines;
+
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private volatile boolean running;
+
+	/**
+	 * Creates a flood generator.
+	 * 
+	 * @param uri the target of the requests
+	 * @param sockets the number of sockets, i.e., flows
+	 * @param ports the number of consecutive target ports from the port of
+	 *            the URI
+	 * @param engines the number of sender threads, or 0 for one per core
+	 */
+	public FloodGenerator(URI uri, int sockets, int ports, int engines) throws IOException {
+		InetAddress address = InetAddress.getByName(uri.getHost());
+		int port = uri.getPort() == -1 ? 5683 : uri.getPort();
+		this.targets = new InetSocketAddress[Math.max(1, ports)];
+		for (int i = 0; i < targets.length; i++)
+			targets[i] = new InetSocketAddress(address, port + i);
+		this.sockets = sockets;
+		this.engines = Math.min(sockets, engines > 0 ? engines : Runtime.getRuntime().availableProcessors());
+
+		Request request = new Request(Code.GET);
+		request.setType(Type.NON);
+		request.setToken(new byte[0]);
+		request.setMID(0);
+		request.setURI(uri);
+		this.prototype = new UdpDataSerializer().serializeRequest(request).getBytes();
+	}
+
+	/**
+	 * Floods the target for the specified time, reports the rates every
+	 * {@link #REPORT_INTERVAL} seconds, and prints the totals.
+	 */
+	public void run(int seconds) throws Exception {
+		List<Flow> flows = new ArrayList<Flow>(sockets);
+		for (int i = 0; i < sockets; i++)
+			flows.add(new Flow(targets[i % targets.length]));
+
+		running = true;
+		List<Thread> threads = new ArrayList<Thread>(engines);
+		for (int e = 0; e < engines; e++) {
+			final List<Flow> own = new ArrayList<Flow>();
+			for (int i = e; i < sockets; i += engines)
+				own.add(flows.get(i));
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					flood(own);
+				}
+			}, "Flood#" + e);
+			thread.setDaemon(true);
+			threads.add(thread);
+		}
+		System.out.format("Flooding %s with %d sockets on %d threads for %d s\n", targets.length == 1 ? targets[0]
+				: targets[0] + " (+" + (targets.length - 1) + " ports)", sockets, engines, seconds);
+
+		long start = System.nanoTime();
+		for (Thread thread : threads)
+			thread.start();
+		long lastSent = 0;
+		long lastReceived = 0;
+		for (int s = 0; s < seconds; s += REPORT_INTERVAL) {
+			Thread.sleep(TimeUnit.SECONDS.toMillis(REPORT_INTERVAL));
+			long totalSent = sent.sum();
+			long totalReceived = received.sum();
+			System.out.format("sent %d/s, received %d/s\n", (totalSent - lastSent) / REPORT_INTERVAL,
+					(totalReceived - lastReceived) / REPORT_INTERVAL);
+			lastSent = totalSent;
+			lastReceived = totalReceived;
+		}
+		running = false;
+		for (Thread thread : threads)
+			thread.join();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		for (Flow flow : flows)
+			flow.close();
+
+		long totalSent = sent.sum();
+		long totalReceived = received.sum();
+		System.out.println("Sockets, Time, Sent, Received, Errors, Throughput (/s), Loss");
+		System.out.format("%d, %.3f, %d, %d, %d, %.0f, %.1f%%\n", sockets, elapsed / 1000f, totalSent, totalReceived,
+				errors.sum(), totalReceived * 1000.0 / elapsed,
+				totalSent == 0 ? 0 : 100.0 * (totalSent - totalReceived) / totalSent);
+	}
+
+	private void flood(List<Flow> flows) {
+		while (running) {
+			for (int i = 0; i < flows.size(); i++) {
+				Flow flow = flows.get(i);
+				try {
+					flow.send();
+					flow.receive();
+				} catch (IOException e) {
+					// e.g., ICMP port unreachable while the server is down
+					errors.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The requests from one source port to one target port.
+	 */
+	private class Flow {
+
+		private final InetSocketAddress target;
+		private final byte[] request = prototype.clone();
+		private final ByteBuffer sendBuffer = ByteBuffer.wrap(request);
+		private final ByteBuffer receiveBuffer = ByteBuffer.allocate(2048);
+		private DatagramChannel channel;
+		private int mid;
+
+		private Flow(InetSocketAddress target) throws IOException {
+			this.target = target;
+			open();
+		}
+
+		private void open() throws IOException {
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			// connected, so that the channel neither allocates nor checks addresses
+			channel.connect(target);
+		}
+
+		private void send() throws IOException {
+			request[2] = (byte) (mid >> 8);
+			request[3] = (byte) mid;
+			sendBuffer.clear();
+			if (channel.write(sendBuffer) > 0)
+				sent.increment();
+			if (++mid == 0x10000) {
+				// a new source port, as the server still knows the old MIDs
+				close();
+				open();
+				mid = 0;
+			}
+		}
+
+		private void receive() throws IOException {
+			while (true) {
+				receiveBuffer.clear();
+				if (channel.read(receiveBuffer) <= 0)
+					return;
+				received.increment();
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) { }
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Samples the resource usage of the benchmark JVM itself during a run: process
+ * CPU, the CPU of the busiest {@link VirtualClientEngine} thread, GC count and
+ * time, allocation rate and the number of requests in flight of the engines.
+ * If the generator's CPU or GC time crosses a threshold, a throughput plateau
+ * says more about the generator than about the server, and the run is
+ * flagged as generator-bound. An engine is single-threaded, so one saturated
+ * engine limits the run even while the process uses a fraction of the cores.
+ * <p>
+ * CPU time and allocated bytes are read from the HotSpot extensions of the
+ * management beans. On JVMs without them, the values are reported as -1.
+ */
+public class GeneratorMonitor {
+
+	public static final long SAMPLE_INTERVAL = 500; // [ms]
+
+	/**
+	 * Fraction of all cores the process, or of one core an engine thread, may
+	 * use before it is the bottleneck
+	 */
+	public static final double CPU_THRESHOLD = 0.90;
+	/** Fraction of the run time the GC may take before it is the bottleneck */
+	public static final double GC_THRESHOLD = 0.05;
+
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+	private final int cores = Runtime.getRuntime().availableProcessors();
+
+	private List<VirtualClientEngine> engines;
+	private TimerTask sampler;
+
+	// start values
+	private long startNanos;
+	private long startCpu;
+	private long startGcCount;
+	private long startGcTime;
+	private long[] engineThreads;
+	private long[] engineStartCpu;
+
+	// sampled values, guarded by this
+	private final HashMap<Long, Long> allocatedPerThread = new HashMap<Long, Long>();
+	private long allocated;
+	private long lastSampleNanos;
+	private long lastSampleCpu;
+	private double peakCpu;
+	private long backlogSum;
+	private int backlogMax;
+	private int samples;
+
+	private Result result;
+
+	/**
+	 * Starts sampling.
+	 *
+	 * @param timer the timer to run the sampler on
+	 * @param engines the engines whose outstanding requests to sample, or null
+	 */
+	public synchronized void start(Timer timer, List<VirtualClientEngine> engines) {
+		this.engines = engines;
+		this.result = null;
+		allocatedPerThread.clear();
+		allocated = 0;
+		peakCpu = 0;
+		backlogSum = 0;
+		backlogMax = 0;
+		samples = 0;
+
+		startNanos = lastSampleNanos = System.nanoTime();
+		startCpu = lastSampleCpu = getProcessCpuTime();
+		startGcCount = getGcCount();
+		startGcTime = getGcTime();
+		int n = engines == null ? 0 : engines.size();
+		engineThreads = new long[n];
+		engineStartCpu = new long[n];
+		for (int i = 0; i < n; i++) {
+			engineThreads[i] = engines.get(i).getThreadId();
+			engineStartCpu[i] = getThreadCpuTime(engineThreads[i]);
+		}
+		sampleAllocation();
+
+		sampler = new TimerTask() {
+			public void run() {
+				sample();
+			}
+		};
+		timer.scheduleAtFixedRate(sampler, SAMPLE_INTERVAL, SAMPLE_INTERVAL);
+	}
+
+	/**
+	 * Stops sampling and returns the result of the run.
+	 */
+	public synchronized Result stop() {
+		if (result != null)
+			return result;
+		if (sampler != null)
+			sampler.cancel();
+		sample();
+
+		long wall = System.nanoTime() - startNanos;
+		long cpu = getProcessCpuTime();
+		Result r = new Result();
+		r.cpu = cpu < 0 || wall <= 0 ? -1 : (double) (cpu - startCpu) / wall / cores;
+		r.peakCpu = cpu < 0 ? -1 : peakCpu;
+		r.engineCpu = getEngineCpu(wall);
+		r.gcCount = getGcCount() - startGcCount;
+		r.gcTime = getGcTime() - startGcTime;
+		r.gc = wall <= 0 ? 0 : r.gcTime * 1000000.0 / wall;
+		r.allocationRate = allocated < 0 || wall <= 0 ? -1 : allocated * 1000.0 / wall; // [MB/s]
+		r.backlogAvg = samples == 0 ? 0 : (double) backlogSum / samples;
+		r.backlogMax = backlogMax;
+		result = r;
+		return r;
+	}
+
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		long cpu = getProcessCpuTime();
+		if (cpu >= 0 && now > lastSampleNanos) {
+			double load = (double) (cpu - lastSampleCpu) / (now - lastSampleNanos) / cores;
+			peakCpu = Math.max(peakCpu, load);
+			lastSampleCpu = cpu;
+			lastSampleNanos = now;
+		}
+		sampleAllocation();
+
+		if (engines != null) {
+			int backlog = 0;
+			for (VirtualClientEngine engine : engines)
+				backlog += engine.getOutstanding();
+			backlogSum += backlog;
+			backlogMax = Math.max(backlogMax, backlog);
+		}
+		samples++;
+	}
+
+	/*
+	 * Accumulates the bytes allocated per thread since the last sample. Only
+	 * the allocations of threads that terminate between two samples are lost.
+	 */
+	private void sampleAllocation() {
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			allocated = -1;
+			return;
+		}
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+		if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+			allocated = -1;
+			return;
+		}
+		long[] ids = hotspot.getAllThreadIds();
+		long[] bytes = hotspot.getThreadAllocatedBytes(ids);
+		boolean first = samples == 0 && allocatedPerThread.isEmpty();
+		for (int i = 0; i < ids.length; i++) {
+			if (bytes[i] < 0)
+				continue;
+			Long last = allocatedPerThread.put(ids[i], bytes[i]);
+			if (!first)
+				allocated += bytes[i] - (last == null ? 0 : last);
+		}
+	}
+
+	/*
+	 * Returns the CPU of the busiest engine thread since the start as fraction
+	 * of one core, or -1 if not available.
+	 */
+	private double getEngineCpu(long wall) {
+		double max = -1;
+		for (int i = 0; i < engineThreads.length; i++) {
+			long cpu = getThreadCpuTime(engineThreads[i]);
+			if (cpu >= 0 && engineStartCpu[i] >= 0 && wall > 0)
+				max = Math.max(max, (double) (cpu - engineStartCpu[i]) / wall);
+		}
+		return max;
+	}
+
+	private long getThreadCpuTime(long id) {
+		if (id < 0 || !threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled())
+			return -1;
+		// -1 if the thread has terminated
+		return threads.getThreadCpuTime(id);
+	}
+
+	private long getProcessCpuTime() {
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+
+	private long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : gcs)
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private long getGcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : gcs)
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+
+	/**
+	 * The resource usage of the generator during one run.
+	 */
+	public static class Result {
+
+		private double cpu; // fraction of all cores
+		private double peakCpu;
+		private double engineCpu; // fraction of one core
+		private long gcCount;
+		private long gcTime; // [ms]
+		private double gc; // fraction of the run time
+		private double allocationRate; // [MB/s]
+		private double backlogAvg;
+		private int backlogMax;
+
+		public double getCpu() {
+			return cpu;
+		}
+
+		public double getPeakCpu() {
+			return peakCpu;
+		}
+
+		/**
+		 * Returns the CPU of the busiest engine thread as fraction of one
+		 * core, or -1 if not available.
+		 */
+		public double getEngineCpu() {
+			return engineCpu;
+		}
+
+		public long getGcCount() {
+			return gcCount;
+		}
+
+		public long getGcTime() {
+			return gcTime;
+		}
+
+		public double getAllocationRate() {
+			return allocationRate;
+		}
+
+		public double getBacklogAvg() {
+			return backlogAvg;
+		}
+
+		public int getBacklogMax() {
+			return backlogMax;
+		}
+
+		/**
+		 * Returns true if the generator rather than the server was likely the
+		 * bottleneck of the run.
+		 */
+		public boolean isGeneratorBound() {
+			return cpu >= CPU_THRESHOLD || engineCpu >= CPU_THRESHOLD || gc >= GC_THRESHOLD;
+		}
+
+		/**
+		 * Returns the header for {@link #toString()}.
+		 */
+		public static String header() {
+			return "CPU%, peak CPU%, engine CPU%, GCs, GC(ms), alloc(MB/s), backlog avg, backlog max, bound";
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f, %.1f, %.1f, %d, %d, %.1f, %.1f, %d, %s",
+					cpu * 100, peakCpu * 100, engineCpu < 0 ? -1 : engineCpu * 100, gcCount, gcTime, allocationRate,
+					backlogAvg, backlogMax, isGeneratorBound() ? "generator-bound" : "ok");
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.Random;
+
+/**
+ * The network conditions the {@link ImpairmentProxy} emulates for one
+ * direction of the traffic. An impairment is stateful (burst loss state and
+ * bandwidth shaper) and must only be used by one thread.
+ * <p>
+ * Loss follows the Gilbert model: with a mean burst length of 1 every datagram
+ * is lost independently, larger values produce bursts of consecutive losses
+ * with the same average loss rate, which is what lossy radio links look like.
+ */
+public class Impairment {
+
+	/** The distributions of the delay added to a datagram. */
+	public enum Distribution {
+		/** delay +/- jitter, uniformly distributed */
+		UNIFORM,
+		/** delay as mean and jitter as standard deviation */
+		NORMAL,
+		/** delay as minimum plus a heavy tail with jitter as mean */
+		PARETO;
+	}
+
+	/** Returned by {@link #admit(int, long)} for a datagram that is lost. */
+	public static final long DROP_LOSS = Long.MIN_VALUE;
+	/** Returned by {@link #admit(int, long)} if the shaper queue is full. */
+	public static final long DROP_QUEUE = Long.MIN_VALUE + 1;
+
+	private static final double PARETO_SHAPE = 1.5;
+
+	private double loss = 0;
+	private double burst = 1;
+	private long delayNanos = 0;
+	private long jitterNanos = 0;
+	private Distribution distribution = Distribution.UNIFORM;
+	private double duplicate = 0;
+	private double reorder = 0;
+	private long rate = 0; // [bit/s], 0 for unlimited
+	private long queueNanos = 100 * 1000000L; // max. backlog of the shaper
+
+	private final Random random;
+
+	// Gilbert model state
+	private boolean bad;
+	private double pGoodToBad;
+	private double pBadToGood;
+
+	// bandwidth shaper state
+	private long nextFree;
+
+	public Impairment(long seed) {
+		this.random = new Random(seed);
+		updateGilbert();
+	}
+
+	/**
+	 * Creates an impairment with the same parameters but independent state
+	 * and random sequence, e.g., for the opposite direction.
+	 */
+	public Impairment copy(long seed) {
+		Impairment copy = new Impairment(seed);
+		copy.loss = loss;
+		copy.burst = burst;
+		copy.delayNanos = delayNanos;
+		copy.jitterNanos = jitterNanos;
+		copy.distribution = distribution;
+		copy.duplicate = duplicate;
+		copy.reorder = reorder;
+		copy.rate = rate;
+		copy.queueNanos = queueNanos;
+		copy.updateGilbert();
+		return copy;
+	}
+
+	/**
+	 * Decides the fate of a datagram.
+	 *
+	 * @param length the length of the datagram in bytes
+	 * @param now the current time in terms of {@link System#nanoTime()}
+	 * @return the time at which the datagram must be forwarded, or
+	 *         {@link #DROP_LOSS} or {@link #DROP_QUEUE}
+	 */
+	public long admit(int length, long now) {
+		if (isLost())
+			return DROP_LOSS;
+
+		long departure = now;
+		if (rate > 0) {
+			long start = Math.max(now, nextFree);
+			if (start - now > queueNanos)
+				return DROP_QUEUE; // tail drop
+			departure = start + length * 8L * 1000000000L / rate;
+			nextFree = departure;
+		}
+
+		if (reorder > 0 && random.nextDouble() < reorder)
+			return departure; // overtakes the delayed datagrams
+		return departure + nextDelay();
+	}
+
+	/**
+	 * Returns true if a datagram should be forwarded twice.
+	 */
+	public boolean isDuplicate() {
+		return duplicate > 0 && random.nextDouble() < duplicate;
+	}
+
+	/**
+	 * Samples the delay and jitter for a datagram from the distribution. Also
+	 * used for duplicates, which are delayed independently.
+	 */
+	public long nextDelay() {
+		if (delayNanos == 0 && jitterNanos == 0)
+			return 0;
+		double d;
+		switch (distribution) {
+		case NORMAL:
+			d = delayNanos + random.nextGaussian() * jitterNanos;
+			break;
+		case PARETO:
+			// the tail above the scale has the mean scale / (shape - 1), which equals the jitter
+			double scale = jitterNanos * (PARETO_SHAPE - 1);
+			d = delayNanos + scale / Math.pow(1 - random.nextDouble(), 1 / PARETO_SHAPE) - scale;
+			break;
+		default:
+			d = delayNanos + (2 * random.nextDouble() - 1) * jitterNanos;
+		}
+		return Math.max(0, (long) d);
+	}
+
+	private boolean isLost() {
+		if (loss <= 0)
+			return false;
+		if (burst <= 1)
+			return random.nextDouble() < loss;
+		if (bad) {
+			if (random.nextDouble() < pBadToGood)
+				bad = false;
+		} else {
+			if (random.nextDouble() < pGoodToBad)
+				bad = true;
+		}
+		return bad;
+	}
+
+	private void updateGilbert() {
+		// steady state loss = p / (p + r) with mean burst length 1 / r
+		if (loss >= 1) {
+			pGoodToBad = 1;
+			pBadToGood = 0;
+		} else {
+			pBadToGood = 1 / Math.max(1, burst);
+			pGoodToBad = Math.min(1, loss * pBadToGood / (1 - loss));
+		}
+	}
+
+	public double getLoss() {
+		return loss;
+	}
+
+	public void setLoss(double loss) {
+		if (loss < 0 || loss > 1)
+			throw new IllegalArgumentException("Loss must be in [0,1]: "+loss);
+		this.loss = loss;
+		updateGilbert();
+	}
+
+	public double getBurst() {
+		return burst;
+	}
+
+	public void setBurst(double burst) {
+		if (burst < 1)
+			throw new IllegalArgumentException("Mean burst length must be at least 1: "+burst);
+		this.burst = burst;
+		updateGilbert();
+	}
+
+	public long getDelay() {
+		return delayNanos / 1000000L;
+	}
+
+	public void setDelay(long ms) {
+		this.delayNanos = ms * 1000000L;
+	}
+
+	public long getJitter() {
+		return jitterNanos / 1000000L;
+	}
+
+	public void setJitter(long ms) {
+		this.jitterNanos = ms * 1000000L;
+	}
+
+	public Distribution getDistribution() {
+		return distribution;
+	}
+
+	public void setDistribution(Distribution distribution) {
+		this.distribution = distribution;
+	}
+
+	public double getDuplicate() {
+		return duplicate;
+	}
+
+	public void setDuplicate(double duplicate) {
+		this.duplicate = duplicate;
+	}
+
+	public double getReorder() {
+		return reorder;
+	}
+
+	public void setReorder(double reorder) {
+		this.reorder = reorder;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Sets the bandwidth cap in bit/s (0 for unlimited).
+	 */
+	public void setRate(long rate) {
+		this.rate = rate;
+	}
+
+	public long getQueue() {
+		return queueNanos / 1000000L;
+	}
+
+	/**
+	 * Sets the maximum backlog of the bandwidth shaper in ms. Datagrams that
+	 * would have to wait longer are dropped.
+	 */
+	public void setQueue(long ms) {
+		this.queueNanos = ms * 1000000L;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("loss=%.3f, burst=%.1f, delay=%dms, jitter=%dms (%s), dup=%.3f, reorder=%.3f, rate=%s",
+				loss, burst, getDelay(), getJitter(), distribution.name().toLowerCase(),
+				duplicate, reorder, rate > 0 ? rate+"bit/s" : "unlimited");
+	}
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A UDP relay that sits between the clients and the target and impairs the
+ * traffic in both directions as specified by an {@link Impairment}. Every
+ * client address gets its own upstream socket, so that the responses can be
+ * routed back to it.
+ * <p>
+ * The relay runs in a single thread on a {@link Selector}. Delayed datagrams
+ * are pooled and kept in a {@link TimingWheel} with a resolution of
+ * {@link #TICK_MICROS} until they are due, so that the relay does not need
+ * a timer thread or a priority queue and does not allocate per datagram. The
+ * idle timeouts of the sessions are kept on a separate wheel with a resolution
+ * of one second, so that an idle relay only wakes up once per second.
+ */
+public class ImpairmentProxy implements Runnable {
+
+	public static final int DEFAULT_PORT = 5684;
+	public static final int MAX_DATAGRAM = 2048;
+	public static final int DEFAULT_MAX_PACKETS = 64 * 1024;
+	public static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+	public static final long TICK_MICROS = 500;
+	public static final long SESSION_TIMEOUT = 60; // [s]
+	public static final long REPORT_INTERVAL = 10; // [s]
+
+	// number of datagrams drained from one channel per select
+	private static final int BATCH = 64;
+
+	private final InetSocketAddress bindAddress;
+	private final InetSocketAddress target;
+	private final Impairment upstream;
+	private final Impairment downstream;
+	private final int maxPackets;
+
+	private final TimingWheel wheel = new TimingWheel(4096, TICK_MICROS, TimeUnit.MICROSECONDS);
+	private final TimingWheel sessionWheel = new TimingWheel(128, 1, TimeUnit.SECONDS);
+	private final HashMap<SocketAddress, Session> sessions = new HashMap<SocketAddress, Session>();
+	private final ArrayDeque<Packet> pool = new ArrayDeque<Packet>();
+	private final ByteBuffer trash = ByteBuffer.allocate(MAX_DATAGRAM);
+	private int allocated;
+
+	private Selector selector;
+	private DatagramChannel channel;
+	private volatile boolean running;
+
+	private final Stats up = new Stats("client->target");
+	private final Stats down = new Stats("target->client");
+
+	public ImpairmentProxy(InetSocketAddress bindAddress, InetSocketAddress target, Impairment impairment) {
+		this(bindAddress, target, impairment, impairment.copy(System.nanoTime()), DEFAULT_MAX_PACKETS);
+	}
+
+	/**
+	 * Creates a relay with different impairments per direction.
+	 *
+	 * @param bindAddress the address the clients send to
+	 * @param target the address of the server under test
+	 * @param upstream the impairment from the clients to the target
+	 * @param downstream the impairment from the target to the clients
+	 * @param maxPackets the maximum number of datagrams held back at once
+	 */
+	public ImpairmentProxy(InetSocketAddress bindAddress, InetSocketAddress target,
+			Impairment upstream, Impairment downstream, int maxPackets) {
+		this.bindAddress = bindAddress;
+		this.target = target;
+		this.upstream = upstream;
+		this.downstream = downstream;
+		this.maxPackets = maxPackets;
+	}
+
+	public void start() throws IOException {
+		selector = Selector.open();
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+		channel.bind(bindAddress);
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+		running = true;
+
+		System.out.println("Impairment proxy " + channel.getLocalAddress() + " -> " + target);
+		System.out.println("  upstream:   " + upstream);
+		System.out.println("  downstream: " + downstream);
+
+		Thread thread = new Thread(this, "ImpairmentProxy");
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		long nextReport = System.nanoTime() + TimeUnit.SECONDS.toNanos(REPORT_INTERVAL);
+		try {
+			while (running) {
+				long now = System.nanoTime();
+				wheel.advance(now);
+				sessionWheel.advance(now);
+
+				// the selector only supports ms, so datagrams leave at most 1 ms late
+				now = System.nanoTime();
+				long wait = TimeUnit.SECONDS.toNanos(1);
+				if (!sessionWheel.isEmpty())
+					wait = Math.min(wait, sessionWheel.nanosToNextTick(now));
+				if (!wheel.isEmpty())
+					wait = Math.min(wait, wheel.nanosToNextTick(now));
+				if (wait > 0)
+					selector.select(Math.max(1, wait / 1000000L));
+				else
+					selector.selectNow();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid() || !key.isReadable())
+						continue;
+					Session session = (Session) key.attachment();
+					if (session == null) {
+						receiveFromClients();
+					} else {
+						try {
+							receiveFromTarget(session);
+						} catch (IOException e) { // e.g., ICMP port unreachable
+							down.errors++;
+						}
+					}
+				}
+
+				now = System.nanoTime();
+				if (now - nextReport >= 0) {
+					report();
+					nextReport = now + TimeUnit.SECONDS.toNanos(REPORT_INTERVAL);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			report();
+			close();
+		}
+	}
+
+	private void receiveFromClients() throws IOException {
+		for (int i = 0; i < BATCH; i++) {
+			Packet packet = acquire();
+			if (packet == null) {
+				// pool exhausted, drain the socket to keep it from stalling
+				trash.clear();
+				if (channel.receive(trash) == null)
+					return;
+				up.overflow++;
+				continue;
+			}
+			SocketAddress source = channel.receive(packet.buffer);
+			if (source == null) {
+				release(packet);
+				return;
+			}
+			Session session = sessions.get(source);
+			if (session == null) {
+				session = new Session((InetSocketAddress) source);
+				sessions.put(source, session);
+			}
+			sessionWheel.schedule(session, System.nanoTime() + TimeUnit.SECONDS.toNanos(SESSION_TIMEOUT));
+			packet.session = session;
+			packet.upstream = true;
+			impair(packet, upstream, up);
+		}
+	}
+
+	private void receiveFromTarget(Session session) throws IOException {
+		for (int i = 0; i < BATCH; i++) {
+			Packet packet = acquire();
+			if (packet == null) {
+				trash.clear();
+				if (session.channel.read(trash) <= 0)
+					return;
+				down.overflow++;
+				continue;
+			}
+			int length;
+			try {
+				length = session.channel.read(packet.buffer);
+			} catch (IOException e) {
+				release(packet);
+				throw e;
+			}
+			if (length <= 0) {
+				release(packet);
+				return;
+			}
+			packet.session = session;
+			packet.upstream = false;
+			impair(packet, downstream, down);
+		}
+	}
+
+	private void impair(Packet packet, Impairment impairment, Stats stats) throws IOException {
+		packet.buffer.flip();
+		stats.received++;
+		long now = System.nanoTime();
+		long departure = impairment.admit(packet.buffer.remaining(), now);
+		if (departure == Impairment.DROP_LOSS) {
+			stats.lost++;
+			release(packet);
+			return;
+		} else if (departure == Impairment.DROP_QUEUE) {
+			stats.overflow++;
+			release(packet);
+			return;
+		}
+
+		if (impairment.isDuplicate()) {
+			Packet copy = acquire();
+			if (copy != null) {
+				copy.buffer.put(packet.buffer.duplicate()).flip();
+				copy.session = packet.session;
+				copy.upstream = packet.upstream;
+				stats.duplicated++;
+				dispatch(copy, departure + impairment.nextDelay(), now);
+			}
+		}
+		dispatch(packet, departure, now);
+	}
+
+	private void dispatch(Packet packet, long departure, long now) {
+		if (departure - now <= 0) {
+			packet.expired(now);
+		} else {
+			wheel.schedule(packet, departure);
+		}
+	}
+
+	private void forward(Packet packet) {
+		Stats stats = packet.upstream ? up : down;
+		try {
+			int sent;
+			if (packet.upstream)
+				sent = packet.session.channel.write(packet.buffer);
+			else
+				sent = channel.send(packet.buffer, packet.session.client);
+			if (sent > 0)
+				stats.forwarded++;
+			else
+				stats.overflow++; // socket buffer full
+		} catch (IOException e) {
+			stats.errors++;
+		} finally {
+			release(packet);
+		}
+	}
+
+	private Packet acquire() {
+		Packet packet = pool.pollFirst();
+		if (packet == null) {
+			if (allocated >= maxPackets)
+				return null;
+			allocated++;
+			packet = new Packet();
+		}
+		return packet;
+	}
+
+	private void release(Packet packet) {
+		packet.buffer.clear();
+		packet.session = null;
+		pool.addFirst(packet);
+	}
+
+	private void report() {
+		System.out.format("[proxy] sessions=%d, pending=%d | %s | %s\n", sessions.size(), wheel.size(), up, down);
+		up.clear();
+		down.clear();
+	}
+
+	private void close() {
+		for (Session session : sessions.values()) {
+			try {
+				session.channel.close();
+			} catch (IOException e) { }
+		}
+		sessions.clear();
+		try {
+			channel.close();
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The upstream socket of one client. A session is closed after
+	 * {@link ImpairmentProxy#SESSION_TIMEOUT} seconds without datagrams from
+	 * the client.
+	 */
+	private class Session extends TimingWheel.Timeout {
+
+		private final InetSocketAddress client;
+		private final DatagramChannel channel;
+
+		private Session(InetSocketAddress client) throws IOException {
+			this.client = client;
+			this.channel = DatagramChannel.open();
+			this.channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+			this.channel.connect(target);
+			this.channel.configureBlocking(false);
+			this.channel.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		@Override
+		protected void expired(long now) {
+			sessions.remove(client);
+			try {
+				channel.close(); // also cancels the key
+			} catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * A pooled datagram that is held back until its departure time.
+	 */
+	private class Packet extends TimingWheel.Timeout {
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+		private Session session;
+		private boolean upstream;
+
+		@Override
+		protected void expired(long now) {
+			if (session.channel.isOpen())
+				forward(this);
+			else
+				release(this);
+		}
+	}
+
+	private static class Stats {
+
+		private final String name;
+		private long received;
+		private long forwarded;
+		private long lost;
+		private long duplicated;
+		private long overflow;
+		private long errors;
+
+		private Stats(String name) {
+			this.name = name;
+		}
+
+		private void clear() {
+			received = forwarded = lost = duplicated = overflow = errors = 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: received %d, forwarded %d, lost %d, duplicated %d, overflow %d, errors %d",
+					name, received, forwarded, lost, duplicated, overflow, errors);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel. Each slot of the wheel covers one tick and holds an
+ * intrusive doubly linked list of {@link Timeout}s. Scheduling and cancelling
+ * a timeout are O(1) and do not allocate, which allows to keep a deadline for
+ * every single datagram or request in flight.
+ * <p>
+ * The wheel is not thread-safe. It must be owned by a single thread that calls
+ * {@link #advance(long)} regularly, e.g., from a selector loop.
+ */
+public class TimingWheel {
+
+	private static final int IDLE = 0;
+	private static final int SCHEDULED = 1;
+	private static final int EXPIRING = 2;
+
+	private final Timeout[] wheel;
+	private final int mask;
+	private final long tickNanos;
+	private final long origin;
+
+	private long tick; // the next tick to process
+	private int size;
+
+	// reused buffer for the timeouts of the currently processed slot
+	private final ArrayList<Timeout> expiring = new ArrayList<Timeout>();
+
+	/**
+	 * Creates a new timing wheel.
+	 *
+	 * @param ticksPerWheel the number of slots (rounded up to a power of two)
+	 * @param tickDuration the duration of one tick
+	 * @param unit the unit of the tick duration
+	 */
+	public TimingWheel(int ticksPerWheel, long tickDuration, TimeUnit unit) {
+		if (ticksPerWheel <= 0)
+			throw new IllegalArgumentException("ticksPerWheel must be positive: "+ticksPerWheel);
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive: "+tickDuration);
+		int n = 1;
+		while (n < ticksPerWheel)
+			n <<= 1;
+		this.wheel = new Timeout[n];
+		this.mask = n - 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.origin = System.nanoTime();
+	}
+
+	/**
+	 * Schedules the specified timeout to expire at the specified deadline. If
+	 * the timeout is already scheduled, it is rescheduled.
+	 *
+	 * @param timeout the timeout
+	 * @param deadline the deadline in terms of {@link System#nanoTime()}
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		if (timeout.state != IDLE)
+			cancel(timeout);
+		long t = (deadline - origin + tickNanos - 1) / tickNanos;
+		if (t < tick)
+			t = tick; // already due, expire with the next advance
+		timeout.deadline = deadline;
+		timeout.tick = t;
+		timeout.slot = (int) (t & mask);
+		timeout.state = SCHEDULED;
+		timeout.prev = null;
+		timeout.next = wheel[timeout.slot];
+		if (timeout.next != null)
+			timeout.next.prev = timeout;
+		wheel[timeout.slot] = timeout;
+		size++;
+	}
+
+	/**
+	 * Cancels the specified timeout.
+	 *
+	 * @param timeout the timeout
+	 * @return true if the timeout was pending and has been cancelled
+	 */
+	public boolean cancel(Timeout timeout) {
+		if (timeout.state == EXPIRING) {
+			// dequeued but not yet fired
+			timeout.state = IDLE;
+			return true;
+		}
+		if (timeout.state != SCHEDULED)
+			return false;
+		unlink(timeout);
+		timeout.state = IDLE;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Expires all timeouts whose deadline is due at the specified time.
+	 * Expired timeouts may reschedule themselves from within
+	 * {@link Timeout#expired(long)}.
+	 *
+	 * @param now the current time in terms of {@link System#nanoTime()}
+	 * @return the number of expired timeouts
+	 */
+	public int advance(long now) {
+		long target = (now - origin) / tickNanos;
+		int fired = 0;
+		int processed = 0;
+		while (tick <= target && processed <= mask) {
+			fired += expireSlot((int) (tick & mask), target, now);
+			tick++;
+			processed++;
+		}
+		if (tick <= target) // we have been idle for more than one round
+			tick = target + 1;
+		return fired;
+	}
+
+	private int expireSlot(int slot, long target, long now) {
+		Timeout timeout = wheel[slot];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.tick <= target) {
+				unlink(timeout);
+				timeout.state = EXPIRING;
+				size--;
+				expiring.add(timeout);
+			}
+			timeout = next;
+		}
+		int fired = 0;
+		for (int i = 0; i < expiring.size(); i++) {
+			timeout = expiring.get(i);
+			if (timeout.state == EXPIRING) { // not cancelled or rescheduled meanwhile
+				timeout.state = IDLE;
+				fired++;
+				timeout.expired(now);
+			}
+		}
+		expiring.clear();
+		return fired;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			wheel[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	/**
+	 * Returns the time until the next tick is due.
+	 *
+	 * @param now the current time in terms of {@link System#nanoTime()}
+	 * @return the time in nanoseconds, 0 if the tick is already due
+	 */
+	public long nanosToNextTick(long now) {
+		long due = origin + tick * tickNanos;
+		return Math.max(0, due - now);
+	}
+
+	/**
+	 * Returns the number of pending timeouts.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * An entry of the timing wheel. Subclasses carry the state that is needed
+	 * when the timeout expires. A timeout can only be scheduled on one wheel
+	 * at a time.
+	 */
+	public static abstract class Timeout {
+
+		private int state = IDLE;
+		private int slot;
+		private long tick;
+		private long deadline;
+		private Timeout prev;
+		private Timeout next;
+
+		public final boolean isScheduled() {
+			return state != IDLE;
+		}
+
+		/**
+		 * Returns the deadline the timeout has been scheduled for last.
+		 */
+		public final long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * Called by the owner thread of the wheel when the timeout expires.
+		 *
+		 * @param now the current time in terms of {@link System#nanoTime()}
+		 */
+		protected abstract void expired(long now);
+	}
+}
@@ -17,40 +17,79 @@
 package org.eclipse.californium.tools.coapbench;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.Random;
 
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.tools.coapbench.jfr.Events;
+import org.eclipse.californium.tools.coapbench.jfr.RequestSendEvent;
+import org.eclipse.californium.tools.coapbench.jfr.ResponseReceiveEvent;
 import org.eclipse.californium.tools.coapbench.producer.VeryEcoMessageProducer;
 
 /**
  * A virtual client sends request to the server as fast as it can handle them.
+ * Lost requests or responses are handled like a CoAP endpoint would: the CON
+ * request is retransmitted with the same MID after ACK_TIMEOUT (randomized by
+ * ACK_RANDOM_FACTOR) with exponential back-off, and the exchange is only
+ * counted as lost after MAX_RETRANSMIT retransmissions.
+ * <p>
+ * A virtual client has no thread of its own. It is driven by a
+ * {@link VirtualClientEngine}, which keeps the deadline of the outstanding
+ * request in its {@link TimingWheel}.
+ * <p>
+ * If a flight recording is active, every transmission and every response is
+ * recorded as {@link RequestSendEvent} and {@link ResponseReceiveEvent}.
+ * <p>
+ * With an interval, the client paces its requests and sends at most one per
+ * interval. A 5.03 response counts as rejected, and the client backs off for
+ * its Max-Age before it sends the next request.
  */
-public class VirtualClient implements Runnable, VirtualDevice {
+public class VirtualClient extends TimingWheel.Timeout implements VirtualDevice {
 
-	public static final int TIMEOUT = 10000;
+	// transmission parameters as in RFC 7252, Section 4.8
+	public static final int ACK_TIMEOUT = 2000; // [ms]
+	public static final float ACK_RANDOM_FACTOR = 1.5f;
+	public static final int MAX_RETRANSMIT = 4;
 	
-	private DatagramSocket socket;
-	private DatagramPacket pSend;
-	private DatagramPacket pRecv;
+	// responses with a MID up to this far behind are late duplicates
+	private static final int MID_WINDOW = 256;
+	
+	private DatagramChannel channel;
+	private ByteBuffer sendBuffer;
+	private ByteBuffer recvBuffer;
 	private VeryEcoMessageProducer producer;
+	private TimingWheel wheel;
 	
-	private boolean runnable;
+	private volatile boolean runnable;
 	private int counter;
 	private int lost;
+	private int retransmissions;
+	private int retransmitted;
+	private int duplicates;
+	private int rejected;
+	private long interval; // [ns]
+	private boolean idle;
 	
-	private InetAddress destAddress;
-	private int destPort;
+	private InetSocketAddress destination;
+	private String uri;
 	private byte[] mid;
 	private long timestamp;
+	private int attempt;
+	private long timeout; // [ns]
+	private ResponseReceiveEvent event;
 	
 	private ArrayList<Integer> latencies;
+	private ArrayList<Integer> retransmittedLatencies;
+	
+	private Random random;
 	
 	private boolean checkMID = true;
 	private boolean checkCode = true;
@@ -63,69 +102,187 @@ public class VirtualClient implements Runnable, VirtualDevice {
 	public VirtualClient(URI uri, InetSocketAddress addr) throws Exception {
 		this.mid = new byte[2];
 		this.latencies = new ArrayList<Integer>();
+		this.retransmittedLatencies = new ArrayList<Integer>();
+		this.random = new Random();
 		this.producer = new VeryEcoMessageProducer();
-		this.pSend = new DatagramPacket(new byte[0], 0);
-		this.pRecv = new DatagramPacket(new byte[100], 100);
+		this.recvBuffer = ByteBuffer.allocate(100);
 		this.runnable = true;
 		setURI(uri);
 		bind(addr);
 	}
 	
 	public void bind(InetSocketAddress addr) throws Exception {
-		if (addr == null)
-			this.socket = new DatagramSocket();
-		else
-			this.socket = new DatagramSocket(addr);
-		this.socket.setSoTimeout(TIMEOUT);
+		this.channel = DatagramChannel.open();
+		this.channel.bind(addr);
+		this.channel.configureBlocking(false);
+		// connected, so that the channel neither allocates nor checks addresses
+		this.channel.connect(destination);
 	}
 	
 	public void setURI(URI uri)  throws UnknownHostException {
-		destAddress = InetAddress.getByName(uri.getHost());
-		if (uri.getPort() == -1)
-			destPort = 5683;
-		else destPort = uri.getPort();
+		InetAddress destAddress = InetAddress.getByName(uri.getHost());
+		int destPort = uri.getPort() == -1 ? 5683 : uri.getPort();
+		destination = new InetSocketAddress(destAddress, destPort);
 		producer.setURI(uri);
-	}
-	
-	public void run() {
-		try {
-			latencies.clear();
-			while (runnable) {
-				sendRequest();
-				receiveResponse();
+		this.uri = uri.toString();
+		if (channel != null && channel.isConnected()) {
+			try {
+				channel.disconnect();
+				channel.connect(destination);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 	
-	public void sendRequest() throws IOException {
+	/**
+	 * Registers this client with the selector and timing wheel of an engine.
+	 */
+	void attach(Selector selector, TimingWheel wheel) throws IOException {
+		this.wheel = wheel;
+		channel.register(selector, SelectionKey.OP_READ, this);
+	}
+	
+	void start(long now) throws IOException {
+		latencies.clear();
+		retransmittedLatencies.clear();
+		if (runnable)
+			sendRequest(now);
+	}
+	
+	public void sendRequest(long now) throws IOException {
 		byte[] bytes = producer.next();
 		saveMID(bytes);
-		pSend.setData(bytes);
-		pSend.setAddress(destAddress);
-		pSend.setPort(destPort);
-		timestamp = System.nanoTime();
-		socket.send(pSend);
+		if (sendBuffer == null || sendBuffer.array() != bytes)
+			sendBuffer = ByteBuffer.wrap(bytes);
+		attempt = 0;
+		timeout = (ACK_TIMEOUT + random.nextInt((int) (ACK_TIMEOUT * (ACK_RANDOM_FACTOR - 1)) + 1)) * 1000000L;
+		timestamp = now;
+		if (Events.RESPONSE_RECEIVE.isEnabled()) {
+			event = new ResponseReceiveEvent();
+			event.begin();
+		} else {
+			event = null;
+		}
+		send();
+		wheel.schedule(this, now + timeout);
 	}
 	
-	public void receiveResponse() throws IOException {
+	private void send() throws IOException {
+		RequestSendEvent sendEvent = null;
+		if (Events.REQUEST_SEND.isEnabled()) {
+			sendEvent = new RequestSendEvent();
+			sendEvent.begin();
+		}
+		sendBuffer.clear();
 		try {
-			boolean mid_correct;
-			long latency;
-			do {
-				socket.receive(pRecv);
-				latency = System.nanoTime() - timestamp;
-				byte[] resp = pRecv.getData();
-				mid_correct = checkMID(resp);
-				checkCode(resp);
-			} while (!mid_correct);
+			channel.write(sendBuffer);
+		} catch (IOException e) {
+			// e.g., ICMP port unreachable, handled like a lost request
+		}
+		if (sendEvent != null) {
+			sendEvent.end();
+			sendEvent.mid = getMID();
+			sendEvent.uri = uri;
+			sendEvent.retransmission = attempt;
+			sendEvent.commit();
+		}
+	}
+	
+	/**
+	 * Called by the engine when the channel has datagrams to read.
+	 */
+	void receive(long now) throws IOException {
+		while (true) {
+			recvBuffer.clear();
+			int length;
+			try {
+				length = channel.read(recvBuffer);
+			} catch (IOException e) {
+				return; // ICMP error of an earlier datagram, handled like a loss
+			}
+			if (length <= 0)
+				return;
+			if (length < 4 || !isScheduled() || idle)
+				continue; // nothing outstanding (stopped, lost already, or pausing)
+			byte[] resp = recvBuffer.array();
+			if (!checkMID(resp))
+				continue;
+			wheel.cancel(this);
+			if ((0xFF & resp[1]) == CoAP.ResponseCode.SERVICE_UNAVAILABLE.value) {
+				rejected++;
+				event = null;
+				if (runnable)
+					pause(now + getMaxAge(resp, length) * 1000000000L);
+				continue;
+			}
+			checkCode(resp);
+			if (event != null) {
+				event.end();
+				event.mid = getMID();
+				event.uri = uri;
+				event.retransmissions = attempt;
+				event.commit();
+				event = null;
+			}
+			
+			long latency = now - timestamp;
+			if (attempt > 0) {
+				retransmitted++;
+				if (checkLatency)
+					retransmittedLatencies.add((int) (latency / 1000000));
+			}
 			if (checkLatency)
 				latencies.add((int) (latency / 1000000));
 			counter++;
-		} catch (SocketTimeoutException e) {
-//			System.out.println("Timeout occured");
-			lost++;
+			if (runnable)
+				sendNext(now);
+		}
+	}
+	
+	private void sendNext(long now) throws IOException {
+		long next = timestamp + interval;
+		if (interval > 0 && next - now > 0)
+			pause(next);
+		else
+			sendRequest(now);
+	}
+	
+	/*
+	 * Waits until the time without an outstanding request.
+	 */
+	private void pause(long until) {
+		idle = true;
+		wheel.schedule(this, until);
+	}
+	
+	/**
+	 * Called by the engine when the deadline of the outstanding request is due.
+	 */
+	@Override
+	protected void expired(long now) {
+		try {
+			if (idle) {
+				idle = false;
+				if (runnable)
+					sendRequest(now);
+				return;
+			}
+			if (attempt == MAX_RETRANSMIT || !runnable) {
+				lost++;
+				event = null;
+				if (runnable)
+					sendNext(now);
+				return;
+			}
+			// retransmit with the same MID and back off
+			attempt++;
+			retransmissions++;
+			timeout *= 2;
+			send();
+			wheel.schedule(this, now + timeout);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 	
@@ -142,6 +299,11 @@ public class VirtualClient implements Runnable, VirtualDevice {
 		runnable = true;
 		counter = 0;
 		lost = 0;
+		retransmissions = 0;
+		retransmitted = 0;
+		duplicates = 0;
+		rejected = 0;
+		idle = false;
 	}
 	
 	public int getCount() {
@@ -156,22 +318,112 @@ public class VirtualClient implements Runnable, VirtualDevice {
 		return latencies;
 	}
 	
+	public int getRetransmissions() {
+		return retransmissions;
+	}
+	
+	public int getRetransmitted() {
+		return retransmitted;
+	}
+	
+	public ArrayList<Integer> getRetransmittedLatencies() {
+		return retransmittedLatencies;
+	}
+	
+	/**
+	 * Returns the number of responses that arrived after their exchange was
+	 * already completed, e.g., the response to the original transmission and
+	 * the retransmission.
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+	
+	/**
+	 * Returns the number of requests that were refused with 5.03.
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+	
+	/**
+	 * Sets the minimum time between two requests in ms, or 0 to send the next
+	 * request right after the response.
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval * 1000000L;
+	}
+	
 	private void saveMID(byte[] bytes) {
 		mid[0] = bytes[2];
 		mid[1] = bytes[3];
 	}
 	
+	private int getMID() {
+		return ((mid[0] & 0xFF)<<8) + (mid[1] & 0xFF);
+	}
+	
 	private boolean checkMID(byte[] bytes) {
-		int expected = ( ((mid[0] & 0xFF)<<8) + (mid[1] & 0xFF));
+		int expected = getMID();
 		int actual = ( ((bytes[2] & 0xFF)<<8) + (bytes[3] & 0xFF));
 		if (checkMID && 
 				(bytes[2] != mid[0] || bytes[3]!=mid[1]) ) {
-			System.err.println("Received message with wrong MID, expected "+expected+ " but received "+actual);
+			int behind = (expected - actual) & 0xFFFF;
+			if (behind > 0 && behind <= MID_WINDOW) {
+				duplicates++;
+			} else {
+				System.err.println("Received message with wrong MID, expected "+expected+ " but received "+actual);
+			}
 			return false;
 		}
 		return true;
 	}
 	
+	/*
+	 * Returns the Max-Age option of the response or 1 second if it has none
+	 * or the options are truncated.
+	 */
+	private static long getMaxAge(byte[] bytes, int length) {
+		int offset = 4 + (bytes[0] & 0x0F);
+		int number = 0;
+		while (offset < length && bytes[offset] != (byte) 0xFF) {
+			int delta = (bytes[offset] >> 4) & 0x0F;
+			int size = bytes[offset] & 0x0F;
+			offset++;
+			if (delta == 13) {
+				if (offset + 1 > length)
+					break;
+				delta = (bytes[offset++] & 0xFF) + 13;
+			} else if (delta == 14) {
+				if (offset + 2 > length)
+					break;
+				delta = ((bytes[offset] & 0xFF) << 8 | (bytes[offset + 1] & 0xFF)) + 269;
+				offset += 2;
+			}
+			if (size == 13) {
+				if (offset + 1 > length)
+					break;
+				size = (bytes[offset++] & 0xFF) + 13;
+			} else if (size == 14) {
+				if (offset + 2 > length)
+					break;
+				size = ((bytes[offset] & 0xFF) << 8 | (bytes[offset + 1] & 0xFF)) + 269;
+				offset += 2;
+			}
+			number += delta;
+			if (number == 14) { // Max-Age
+				long value = 0;
+				for (int i = 0; i < size && offset + i < length; i++)
+					value = value << 8 | (bytes[offset + i] & 0xFF);
+				return value;
+			} else if (number > 14) {
+				break;
+			}
+			offset += size;
+		}
+		return 1;
+	}
+	
 	private void checkCode(byte[] bytes) {
 		int c = 0xFF & bytes[1];
 		if (checkCode && c != CoAP.ResponseCode.CONTENT.value) {
@@ -189,6 +441,10 @@ public class VirtualClient implements Runnable, VirtualDevice {
 	}
 	
 	public void close() {
-		socket.close();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 }
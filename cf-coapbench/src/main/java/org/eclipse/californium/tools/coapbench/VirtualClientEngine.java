@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An engine multiplexes many {@link VirtualClient}s on one selector thread.
+ * The deadlines of all their outstanding requests are kept in one
+ * {@link TimingWheel}, so that timeouts and retransmissions neither need a
+ * blocking receive with a socket timeout nor a system call per change.
+ * <p>
+ * The virtual device managers create one engine per core and distribute the
+ * clients over them.
+ */
+public class VirtualClientEngine implements Runnable {
+
+	public static final long TICK_MILLIS = 1;
+	public static final int TICKS_PER_WHEEL = 4096;
+
+	private final TimingWheel wheel = new TimingWheel(TICKS_PER_WHEEL, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	private final ArrayList<VirtualClient> clients = new ArrayList<VirtualClient>();
+	private final Selector selector;
+	private final String name;
+
+	private volatile boolean running;
+	private Thread thread;
+
+	public VirtualClientEngine(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Adds a client to this engine. Must be called before {@link #start()}.
+	 */
+	public void add(VirtualClient client) throws IOException {
+		client.attach(selector, wheel);
+		clients.add(client);
+	}
+
+	public void start() {
+		running = true;
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * Returns the id of the thread of the engine, or -1 if not started.
+	 */
+	public long getThreadId() {
+		Thread t = thread;
+		return t == null ? -1 : t.getId();
+	}
+
+	/**
+	 * Stops the engine and waits for its thread to terminate, after which the
+	 * counters of the clients can safely be read.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			long now = System.nanoTime();
+			for (VirtualClient client : clients)
+				client.start(now);
+
+			while (running) {
+				wheel.advance(System.nanoTime());
+
+				// the selector only supports ms, so wake up at the latest one tick late
+				long wait = wheel.nanosToNextTick(System.nanoTime());
+				if (wheel.isEmpty())
+					selector.select(1000);
+				else if (wait > 0)
+					selector.select(Math.max(1, wait / 1000000L));
+				else
+					selector.selectNow();
+
+				now = System.nanoTime();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() && key.isReadable())
+						((VirtualClient) key.attachment()).receive(now);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			// the clients may be attached to another engine in the next run
+			for (VirtualClient client : clients)
+				wheel.cancel(client);
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of requests that currently have a pending deadline.
+	 */
+	public int getOutstanding() {
+		return wheel.size();
+	}
+
+	/**
+	 * Returns the number of engines to use for the specified number of
+	 * clients, i.e., one per core but not more than clients.
+	 */
+	public static int defaultEngineCount(int clients) {
+		return Math.max(1, Math.min(clients, Runtime.getRuntime().availableProcessors()));
+	}
+}
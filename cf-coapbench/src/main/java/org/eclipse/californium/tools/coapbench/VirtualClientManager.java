@@ -41,6 +41,7 @@ public class VirtualClientManager {
 	private long timestamp;
 	private int count;
 	private ArrayList<VirtualClient> clients;
+	private ArrayList<VirtualClientEngine> engines;
 	
 	private LogFile log;
 	
@@ -59,6 +60,7 @@ public class VirtualClientManager {
 		this.uri = uri;
 		this.bindAddr = bindAddr;
 		this.clients = new ArrayList<VirtualClient>();
+		this.engines = new ArrayList<VirtualClientEngine>();
 		this.timer = new Timer();
 	}
 	
@@ -115,15 +117,18 @@ public class VirtualClientManager {
 	public void start(int count, int time) throws Exception {
 		ensurelog();
 		setClientCount(count);
-		Thread[] threads = new Thread[count];
+		engines.clear();
+		int n = VirtualClientEngine.defaultEngineCount(count);
+		for (int i=0;i<n;i++)
+			engines.add(new VirtualClientEngine("VirtualClientEngine#"+i));
 		for (int i=0;i<count;i++) {
 			VirtualClient c = clients.get(i);
 			c.reset();
-			threads[i] = new Thread(c);
+			engines.get(i % n).add(c);
 		}
 		System.err.println("\nStart "+count+" virtual clients for "+time+" ms");
-		for (int i=0;i<count;i++)
-			threads[i].start();
+		for (VirtualClientEngine engine : engines)
+			engine.start();
 		timestamp = System.nanoTime();
 		timer.schedule(new TimerTask() {
 			public void run() {
@@ -137,9 +142,14 @@ public class VirtualClientManager {
 			System.out.println("Stop virtual clients and collect results");
 		for (VirtualClient vc:clients)
 			vc.stop();
+		for (VirtualClientEngine engine:engines)
+			engine.stop();
 		int sum = 0;
 		int sumTimeout = 0;
+		int sumRetransmissions = 0;
+		int sumDuplicates = 0;
 		IntArray latencies = new IntArray();
+		IntArray retransmitted = new IntArray();
 		for (int i=0;i<clients.size();i++) {
 			VirtualClient client = clients.get(i);
 			int count = client.getCount();
@@ -149,9 +159,14 @@ public class VirtualClientManager {
 			}
 			sum += count;
 			sumTimeout += lost;
+			for (int lat : client.getRetransmittedLatencies()) {
+				retransmitted.add(lat);
+			}
+			sumRetransmissions += client.getRetransmissions();
+			sumDuplicates += client.getDuplicates();
 			if (verbose)
-				System.out.format("Virtual client %2d received %7d, timeout %3d, throughput %d /s\n"
-					, i, count, lost, (int) (count * 1000L / dt));
+				System.out.format("Virtual client %2d received %7d, timeout %3d, retransmissions %3d, throughput %d /s\n"
+					, i, count, lost, client.getRetransmissions(), (int) (count * 1000L / dt));
 		}
 		float throughput = (sum * 1000L) / dt;
 		
@@ -183,6 +198,20 @@ public class VirtualClientManager {
         	// no latency
         	log.format("c=%d, t=%.3f, received=%d, timeouts=%d, throughput=%.2f, uri=%s\n", count, dt/1000f, sum, sumTimeout, throughput, uri.toString());
         }
+        if (sumRetransmissions > 0 || sumDuplicates > 0) {
+        	// exchanges that needed retransmissions, their latency includes the back-off;
+        	// duplicates are late responses to an already completed exchange
+        	int[] rets = retransmitted.getArray();
+        	if (rets.length > 0) {
+        		Arrays.sort(rets);
+        		log.format("Retransmissions, Retransmitted, Duplicates | 50%%, 90%%, 99%%, 100%% (ms)\n");
+        		log.format("%d, %d, %d | %d, %d, %d, %d\n", sumRetransmissions, rets.length, sumDuplicates,
+        				rets[rets.length/2], rets[(int) (rets.length * 9L/10)],
+        				rets[(int) (rets.length * 99L/100)], rets[rets.length - 1]);
+        	} else {
+        		log.format("retransmissions=%d, duplicates=%d\n", sumRetransmissions, sumDuplicates);
+        	}
+        }
 	}
 
 	public boolean isEnableLatency() {
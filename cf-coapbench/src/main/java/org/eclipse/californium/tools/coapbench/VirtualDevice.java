@@ -34,6 +34,9 @@ public interface VirtualDevice {
 	public int getTimeouts();
 	public ArrayList<Integer> getLatencies();
 	
+	public int getRetransmissions();
+	public ArrayList<Integer> getRetransmittedLatencies();
+	
 	public boolean isRunning();
 	
 	public void close();
@@ -50,13 +50,23 @@ public class VirtualDeviceManager {
 	private boolean confirmable = true;
 	
 	private ArrayList<VirtualDevice> devices;
+	private ArrayList<VirtualClientEngine> engines;
+	private int engineCount = 0; // 0 for one per core
 	
 	private CyclicBarrier barrier;
 	
+	private GeneratorMonitor monitor;
+	
 	private LogFile log;
 	
 	private boolean enableLatency = false;
 	private boolean verbose;
+	private long interval; // [ms]
+	
+	// results of the last run
+	private float throughput;
+	private float goodput;
+	private int rejected;
 
 	public VirtualDeviceManager() throws Exception {
 		this(null);
@@ -70,7 +80,9 @@ public class VirtualDeviceManager {
 		this.uri = uri;
 		this.bindAddr = bindAddr;
 		this.devices = new ArrayList<VirtualDevice>();
+		this.engines = new ArrayList<VirtualClientEngine>();
 		this.timer = new Timer();
+		this.monitor = new GeneratorMonitor();
 		this.timestamp = 0L;
 		this.ensurelog();
 	}
@@ -151,24 +163,37 @@ public class VirtualDeviceManager {
 		timestamp = 0;
 		barrier = new CyclicBarrier(count + 1);
 		setDeviceCount(count, clients);
-		Thread[] threads = new Thread[count];
-		for (int i=0;i<count;i++) {
-			VirtualDevice d = devices.get(i);
-			d.reset();
-			if (clients)
-				threads[i] = new Thread((VirtualClient)d);
-			else {
+		System.err.println("\nSetup "+count+" virtual " + (clients ? "client" + (count == 1 ? "" : "s") : "server" + (count == 1 ? "" : "s")) + " for "+time+" ms");
+		if (clients) {
+			// the virtual clients are multiplexed on one engine per core
+			engines.clear();
+			int n = engineCount > 0 ? Math.min(engineCount, count) : VirtualClientEngine.defaultEngineCount(count);
+			for (int i=0;i<n;i++)
+				engines.add(new VirtualClientEngine("VirtualClientEngine#"+i));
+			for (int i=0;i<count;i++) {
+				VirtualClient c = (VirtualClient) devices.get(i);
+				c.reset();
+				c.setInterval(interval);
+				engines.get(i % n).add(c);
+			}
+			for (VirtualClientEngine engine : engines)
+				engine.start();
+		} else {
+			Thread[] threads = new Thread[count];
+			for (int i=0;i<count;i++) {
+				VirtualDevice d = devices.get(i);
+				d.reset();
 				threads[i] = new Thread((VirtualServer)d);
 			}
+			for (int i=0;i<count;i++)
+				threads[i].start();
 		}
-		System.err.println("\nSetup "+count+" virtual " + (clients ? "client" + (count == 1 ? "" : "s") : "server" + (count == 1 ? "" : "s")) + " for "+time+" ms");
-		for (int i=0;i<count;i++)
-			threads[i].start();
 		testlength = time;
 		
 		/* If we're executing a client benchmark, then we have to setup the test timer here */
 		if (clients) {  
 			timestamp = System.nanoTime();
+			monitor.start(timer, engines);
 			timer.schedule(new TimerTask() {
 				public void run() {
 					stop();
@@ -181,9 +206,15 @@ public class VirtualDeviceManager {
 		if (timestamp == 0)
 			return;
 		timestamp = 0;
+		GeneratorMonitor.Result usage = monitor.stop();
 		
 		for (VirtualDevice vd:devices)
 			vd.stop();
+		// stopping an engine joins its thread, so the client counters are final
+		boolean clients = !engines.isEmpty();
+		for (VirtualClientEngine engine:engines)
+			engine.stop();
+		engines.clear();
 		
 		barrier.reset();
 		CoapClient client;
@@ -197,10 +228,12 @@ public class VirtualDeviceManager {
 			}
 		}
 		
-		try {
-			Thread.sleep(1500);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		if (!clients) {
+			try {
+				Thread.sleep(1500);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
 		
 		if (!confirmable) {
@@ -210,7 +243,12 @@ public class VirtualDeviceManager {
 		
 		int sum = 0;
 		int sumTimeout = 0;
+		int sumRetransmissions = 0;
+		int sumRetransmitted = 0;
+		int sumDuplicates = 0;
+		int sumRejected = 0;
 		ArrayList<Integer> latencies = new ArrayList<Integer>();
+		ArrayList<Integer> retransmitted = new ArrayList<Integer>();
 		
 		if (verbose)
 			System.out.println();
@@ -222,6 +260,13 @@ public class VirtualDeviceManager {
 			VirtualDevice device = devices.get(i);
 			int lost = device.getTimeouts();
 			latencies.addAll(device.getLatencies());
+			retransmitted.addAll(device.getRetransmittedLatencies());
+			sumRetransmissions += device.getRetransmissions();
+			if (device instanceof VirtualClient) {
+				sumRetransmitted += ((VirtualClient) device).getRetransmitted();
+				sumDuplicates += ((VirtualClient) device).getDuplicates();
+				sumRejected += ((VirtualClient) device).getRejected();
+			}
 			int count = device.getCount();
 			sum += count;
 			
@@ -232,8 +277,8 @@ public class VirtualDeviceManager {
 			sumTimeout += lost;
 			
 			if (verbose)
-				System.out.format("Virtual client %2d received %7d, timeouts: %3d, throughput: %d /s\n"
-					, i, count, lost, (int) (count * 1000L / dt));
+				System.out.format("Virtual client %2d received %7d, timeouts: %3d, retransmissions: %3d, throughput: %d /s\n"
+					, i, count, lost, device.getRetransmissions(), (int) (count * 1000L / dt));
 		}
 		
 		if (!confirmable) {
@@ -241,6 +286,10 @@ public class VirtualDeviceManager {
 		}
 		
 		float throughput = (sum * 1000L) / dt;
+		// goodput only counts the responses that arrived in time, i.e., without retransmission
+		this.throughput = throughput;
+		this.goodput = ((sum - sumRetransmitted) * 1000L) / dt;
+		this.rejected = sumRejected;
 		
 		long latsum = 0;
 		for (int l:latencies) latsum += l;
@@ -261,14 +310,39 @@ public class VirtualDeviceManager {
 			int q99 = latencies.get((int) (latencies.size() * 99L/100));
 			int q100 = latencies.get(latencies.size() - 1);
 			
-			log.format("Timeouts, Concurrency, Time, Completed, Throughput | 50%%, 66%%, 75%%, 80%%, 90%%, 95%%, 98%%, 99%%, 100%%, stdev(ms)\n");
-			log.format("%d, %d, %.3f, %d, %.2f | %d, %d, %d, %d, %d, %d, %d, %d, %d, %.1f\n",
+			log.format("Timeouts, Concurrency, Time, Completed, Throughput | 50%%, 66%%, 75%%, 80%%, 90%%, 95%%, 98%%, 99%%, 100%%, stdev(ms) | %s\n",
+					GeneratorMonitor.Result.header());
+			log.format("%d, %d, %.3f, %d, %.2f | %d, %d, %d, %d, %d, %d, %d, %d, %d, %.1f | %s\n",
 					sumTimeout, count, dt/1000f, sum, throughput,
-					q50, q66, q75, q80, q90, q95, q98, q99, q100, var);
+					q50, q66, q75, q80, q90, q95, q98, q99, q100, var, usage);
         
         } else {
         	// no latency
-        	log.format("d=%d, t=%.3f, received=%d, timeouts=%d, throughput=%.2f, uri=%s\n", count, dt/1000f, sum, sumTimeout, throughput, uri.toString());
+        	log.format("d=%d, t=%.3f, received=%d, timeouts=%d, throughput=%.2f, uri=%s, cpu=%.1f%%, engine cpu=%.1f%%, gcs=%d, gc=%dms, alloc=%.1fMB/s, backlog=%.1f%s\n",
+        			count, dt/1000f, sum, sumTimeout, throughput, uri.toString(),
+        			usage.getCpu() * 100, usage.getEngineCpu() < 0 ? -1 : usage.getEngineCpu() * 100, usage.getGcCount(), usage.getGcTime(), usage.getAllocationRate(), usage.getBacklogAvg(),
+        			usage.isGeneratorBound() ? ", generator-bound" : "");
+        }
+        
+        if (sumRejected > 0 || interval > 0) {
+        	log.format("Rejected, Goodput (/s), Interval (ms)\n");
+        	log.format("%d, %.2f, %d\n", sumRejected, goodput, interval);
+        }
+        
+        if (sumRetransmissions > 0 || sumDuplicates > 0) {
+        	// exchanges that needed retransmissions, their latency includes the back-off;
+        	// duplicates are late responses to an already completed exchange
+        	if (retransmitted.size() > 0) {
+        		Collections.sort(retransmitted);
+        		log.format("Retransmissions, Retransmitted, Duplicates | 50%%, 90%%, 99%%, 100%% (ms)\n");
+        		log.format("%d, %d, %d | %d, %d, %d, %d\n", sumRetransmissions, retransmitted.size(), sumDuplicates,
+        				retransmitted.get(retransmitted.size()/2),
+        				retransmitted.get((int) (retransmitted.size() * 9L/10)),
+        				retransmitted.get((int) (retransmitted.size() * 99L/100)),
+        				retransmitted.get(retransmitted.size() - 1));
+        	} else {
+        		log.format("retransmissions=%d, duplicates=%d\n", sumRetransmissions, sumDuplicates);
+        	}
         }
 	}
 	
@@ -286,6 +360,7 @@ public class VirtualDeviceManager {
 					} }, testlength);
 				barrier.await();
 				timestamp = System.nanoTime();
+				monitor.start(timer, null);
 				System.err.println("\nVirtual servers collected at barrier; starting notification process.");
 			} catch (InterruptedException | BrokenBarrierException e) {
 				e.printStackTrace();
@@ -304,6 +379,18 @@ public class VirtualDeviceManager {
 		this.bindAddr = bindAddr;
 	}
 
+	public int getEngineCount() {
+		return engineCount;
+	}
+	
+	/**
+	 * Sets the number of threads the virtual clients are multiplexed on (0 for
+	 * one per core).
+	 */
+	public void setEngineCount(int engineCount) {
+		this.engineCount = engineCount;
+	}
+	
 	public boolean isEnableLatency() {
 		return enableLatency;
 	}
@@ -323,6 +410,40 @@ public class VirtualDeviceManager {
 			log.setVerbose(verbose);
 	}
 	
+	public long getInterval() {
+		return interval;
+	}
+	
+	/**
+	 * Sets the minimum time between two requests of a virtual client in ms,
+	 * which limits the offered load to clients / interval.
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+	
+	/**
+	 * Returns the responses per second of the last run.
+	 */
+	public float getThroughput() {
+		return throughput;
+	}
+	
+	/**
+	 * Returns the responses per second of the last run that arrived without
+	 * retransmission.
+	 */
+	public float getGoodput() {
+		return goodput;
+	}
+	
+	/**
+	 * Returns the number of requests refused with 5.03 in the last run.
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+	
 	public boolean isConfirmable() {
 		return confirmable;
 	}
@@ -36,6 +36,9 @@ import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+import org.eclipse.californium.tools.coapbench.jfr.Events;
+import org.eclipse.californium.tools.coapbench.jfr.NotificationAckEvent;
+import org.eclipse.californium.tools.coapbench.jfr.NotificationSendEvent;
 import org.eclipse.californium.tools.coapbench.producer.VeryEcoNotificationProducer;
 
 /**
@@ -55,6 +58,7 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	private InetSocketAddress bindAddress;
 	private InetAddress destAddress;
 	private int destPort;
+	private String observerURI;
 	private URI postURI;
 	
 	private boolean runnable;
@@ -67,6 +71,8 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	private int counter;
 	private int lost;
 	private long timestamp;
+	private int mid;
+	private NotificationAckEvent ackEvent;
 	
 	private CyclicBarrier barrier;
 	
@@ -240,6 +246,7 @@ public class VirtualServer implements Runnable, VirtualDevice {
 					
 					destAddress = pRecv.getAddress();
 					destPort = pRecv.getPort();
+					observerURI = "coap://" + destAddress.getHostAddress() + ":" + destPort;
 					
 					producer = new VeryEcoNotificationProducer(token.getData(), (getIntFromWord(ByteBuffer.wrap(Arrays.copyOfRange(req, 2, 4)).array()) + 1) % 65536, confirmable);
 					registered = true;
@@ -261,7 +268,11 @@ public class VirtualServer implements Runnable, VirtualDevice {
 			return -1;
 		}
 		
-		return array[0] << 8 & 0xFF00 | array[1] & 0xFF;
+		return getIntFromWord(array[0], array[1]);
+	}
+	
+	private static int getIntFromWord(byte high, byte low) {
+		return high << 8 & 0xFF00 | low & 0xFF;
 	}
 	
 
@@ -270,8 +281,26 @@ public class VirtualServer implements Runnable, VirtualDevice {
 	 * an empty notification to each of them.
 	 */
 	public void notifyObserver() throws IOException {
-		pSend.setData(producer.next());
-		socket.send(pSend);
+		byte[] notification = producer.next();
+		mid = getIntFromWord(notification[2], notification[3]);
+		pSend.setData(notification);
+		
+		if (confirmable && Events.NOTIFICATION_ACK.isEnabled()) {
+			ackEvent = new NotificationAckEvent();
+			ackEvent.begin();
+		}
+		if (Events.NOTIFICATION_SEND.isEnabled()) {
+			NotificationSendEvent event = new NotificationSendEvent();
+			event.begin();
+			socket.send(pSend);
+			event.end();
+			event.mid = mid;
+			event.uri = observerURI;
+			event.confirmable = confirmable;
+			event.commit();
+		} else {
+			socket.send(pSend);
+		}
 		
 		if (!confirmable) {
 			++counter;
@@ -291,11 +320,13 @@ public class VirtualServer implements Runnable, VirtualDevice {
 			while (true) {
 				socket.receive(pRecv);
 				if (checkLatency) latencies.add((int)(System.nanoTime() - timestamp));
+				commitAckEvent(false);
 				++counter;
 				return;
 			}
 				
 		} catch (SocketTimeoutException e) { // regular timeout
+			commitAckEvent(true);
 			++lost;
 			return;
 			
@@ -305,6 +336,17 @@ public class VirtualServer implements Runnable, VirtualDevice {
 		}
 	}
 	
+	private void commitAckEvent(boolean timeout) {
+		if (ackEvent != null) {
+			ackEvent.end();
+			ackEvent.mid = mid;
+			ackEvent.uri = observerURI;
+			ackEvent.timeout = timeout;
+			ackEvent.commit();
+			ackEvent = null;
+		}
+	}
+	
 	public void startNotifications() {
 		runnable = true;
 	}
@@ -334,6 +376,16 @@ public class VirtualServer implements Runnable, VirtualDevice {
 		return latencies;
 	}
 	
+	@Override
+	public int getRetransmissions() {
+		return 0; // notifications are not retransmitted
+	}
+	
+	@Override
+	public ArrayList<Integer> getRetransmittedLatencies() {
+		return new ArrayList<Integer>(0);
+	}
+	
 	@Override
 	public void setURI(URI uri)  throws UnknownHostException {
 		postURI = uri;
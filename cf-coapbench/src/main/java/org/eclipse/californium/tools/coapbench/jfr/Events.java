@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench.jfr;
+
+import jdk.jfr.EventType;
+
+/**
+ * The JDK Flight Recorder event types of the benchmark. Start a recording,
+ * e.g., with <code>-XX:StartFlightRecording=filename=bench.jfr</code>, to
+ * correlate latency spikes with GC, safepoints and lock contention of the
+ * generator.
+ * <p>
+ * The hot paths check {@link EventType#isEnabled()} before they create an
+ * event, so a disabled event type costs neither an allocation nor a
+ * timestamp.
+ */
+public final class Events {
+
+	public static final EventType REQUEST_SEND = EventType.getEventType(RequestSendEvent.class);
+	public static final EventType RESPONSE_RECEIVE = EventType.getEventType(ResponseReceiveEvent.class);
+	public static final EventType NOTIFICATION_SEND = EventType.getEventType(NotificationSendEvent.class);
+	public static final EventType NOTIFICATION_ACK = EventType.getEventType(NotificationAckEvent.class);
+
+	public static final String CATEGORY = "Californium";
+	public static final String SUBCATEGORY = "CoAPBench";
+
+	private Events() { }
+}
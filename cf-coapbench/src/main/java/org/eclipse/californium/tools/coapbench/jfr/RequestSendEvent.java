@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.coapbench.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A virtual client has sent a request. The duration is the time spent in the
+ * send call.
+ */
+@Name("org.eclipse.californium.tools.coapbench.RequestSend")
+@Label("CoAP Request Send")
+@Category({Events.CATEGORY, Events.SUBCATEGORY})
+@Description("A virtual client has (re)transmitted a request")
+public class RequestSendEvent extends Event {
+
+	@Label("MID")
+	public int mid;
+
+	@Label("URI")
+	public String uri;
+
+	@Label("Retransmission")
+	@Description("0 for the first transmission")
+	public int retransmission;
+}
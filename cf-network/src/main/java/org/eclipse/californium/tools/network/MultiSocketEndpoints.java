@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.network;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * Creates several endpoints for one address, so that the datagrams are
+ * received on several sockets by several threads instead of one. With
+ * SO_REUSEPORT, all endpoints share the address and the kernel balances the
+ * clients over them. Otherwise, the endpoints bind consecutive ports, and
+ * the clients must be spread over the port range, e.g., by coapbench URIs.
+ * <p>
+ * One endpoint per core is a good start. More endpoints than cores only add
+ * threads that compete for the same cores.
+ */
+public final class MultiSocketEndpoints {
+
+	private static final Logger LOGGER = Logger.getLogger(MultiSocketEndpoints.class.getCanonicalName());
+
+	private MultiSocketEndpoints() { }
+
+	/**
+	 * Creates the endpoints.
+	 * 
+	 * @param address the address to bind, the first port of the range if
+	 *            SO_REUSEPORT is not supported
+	 * @param count the number of endpoints
+	 * @param config the configuration of the endpoints
+	 * @return the endpoints, not yet started
+	 */
+	public static List<CoapEndpoint> create(InetSocketAddress address, int count, NetworkConfig config) {
+		List<CoapEndpoint> endpoints = new ArrayList<CoapEndpoint>(count);
+		if (ReusePortConnector.isSupported()) {
+			LOGGER.info("Binding " + count + " endpoints to " + address + " with SO_REUSEPORT");
+			for (int i = 0; i < count; i++)
+				endpoints.add(new CoapEndpoint(new ReusePortConnector(address, config), config));
+		} else {
+			int last = address.getPort() == 0 ? 0 : address.getPort() + count - 1;
+			LOGGER.info("SO_REUSEPORT not supported, binding " + count + " endpoints to ports " + address.getPort() + "-" + last);
+			for (int i = 0; i < count; i++) {
+				int port = address.getPort() == 0 ? 0 : address.getPort() + i;
+				endpoints.add(new CoapEndpoint(new InetSocketAddress(address.getAddress(), port), config));
+			}
+		}
+		return endpoints;
+	}
+}
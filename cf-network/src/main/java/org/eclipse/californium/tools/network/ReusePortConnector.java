@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+
+/**
+ * A UDP connector whose socket sets SO_REUSEPORT, so that several connectors
+ * can bind the same address and the kernel spreads the datagrams over their
+ * sockets by the hash of source and destination. The datagrams of one client
+ * therefore always reach the same connector and its endpoint, so that
+ * deduplication and matching stay consistent.
+ * <p>
+ * Each connector has one receiver thread and sends from the calling thread,
+ * as a send on a {@link DatagramChannel} does not block its receive.
+ * SO_REUSEPORT is looked up reflectively, as it is only available as a
+ * standard socket option since Java 9 and not on all platforms; see
+ * {@link #isSupported()}.
+ */
+public class ReusePortConnector implements Connector {
+
+	private static final Logger LOGGER = Logger.getLogger(ReusePortConnector.class.getCanonicalName());
+
+	private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+	private final InetSocketAddress bindAddress;
+	private final int datagramSize;
+	private final int receiveBuffer;
+	private final int sendBuffer;
+
+	private volatile DatagramChannel channel;
+	private volatile boolean running;
+	private InetSocketAddress address;
+	private Thread receiver;
+	private RawDataChannel handler;
+
+	public ReusePortConnector(InetSocketAddress bindAddress, NetworkConfig config) {
+		this.bindAddress = bindAddress;
+		this.datagramSize = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_DATAGRAM_SIZE);
+		this.receiveBuffer = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER);
+		this.sendBuffer = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_SEND_BUFFER);
+		this.address = bindAddress;
+	}
+
+	/**
+	 * Returns true if the JVM and platform support SO_REUSEPORT for UDP.
+	 */
+	public static boolean isSupported() {
+		if (SO_REUSEPORT == null)
+			return false;
+		try {
+			DatagramChannel probe = DatagramChannel.open();
+			try {
+				return probe.supportedOptions().contains(SO_REUSEPORT);
+			} finally {
+				probe.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookupReusePort() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (running)
+			return;
+		if (!isSupported())
+			throw new IOException("SO_REUSEPORT is not supported");
+		channel = DatagramChannel.open();
+		channel.setOption(SO_REUSEPORT, true);
+		if (receiveBuffer > 0)
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+		if (sendBuffer > 0)
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+		channel.bind(bindAddress);
+		address = (InetSocketAddress) channel.getLocalAddress();
+		running = true;
+
+		receiver = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "ReusePortReceiver[" + address + "]");
+		receiver.setDaemon(true);
+		receiver.start();
+		LOGGER.config("ReusePortConnector listening on " + address);
+	}
+
+	private void receive() {
+		ByteBuffer buffer = ByteBuffer.allocate(datagramSize > 0 ? datagramSize : 2048);
+		while (running) {
+			try {
+				buffer.clear();
+				InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+				buffer.flip();
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				RawDataChannel handler = this.handler;
+				if (handler != null)
+					handler.receiveData(new RawData(bytes, source.getAddress(), source.getPort()));
+			} catch (ClosedChannelException e) {
+				break; // stopped
+			} catch (IOException e) {
+				if (running)
+					LOGGER.log(Level.WARNING, "Receive failed on " + address, e);
+			}
+		}
+	}
+
+	@Override
+	public void send(RawData msg) {
+		DatagramChannel channel = this.channel;
+		if (channel == null)
+			return;
+		try {
+			channel.send(ByteBuffer.wrap(msg.getBytes()), new InetSocketAddress(msg.getAddress(), msg.getPort()));
+		} catch (IOException e) {
+			if (running)
+				LOGGER.log(Level.WARNING, "Send failed on " + address, e);
+		}
+	}
+
+	@Override
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			if (!running)
+				return;
+			running = false;
+			thread = receiver;
+			try {
+				channel.close(); // also ends the blocking receive
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Close failed", e);
+			}
+		}
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		stop();
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.tools.resources.Endpoint;
+import org.eclipse.californium.tools.resources.ResourceDirecory;
+
+/**
+ * Measures registration, re-registration, update and removal in the resource
+ * directory with a large number of endpoints. The requests are passed to the
+ * resource handlers directly, without network and CoAP stack, so that the
+ * results show the cost of the directory itself.
+ * <p>
+ * Usage: <code>RegistrationBenchmark [-n N] [-domains D]</code>, with
+ * N = 1000000 endpoints by default, spread over D = 10 domains. Each phase
+ * prints the mean time per operation for every tenth of the endpoints, which
+ * stays flat as the directory grows. One million endpoints need a heap of
+ * about 4 GB (-Xmx4g).
+ */
+public class RegistrationBenchmark {
+
+    private static final String LINKS = "</sensors/temp>;rt=\"temperature-c\";if=\"sensor\","
+            + "</sensors/light>;rt=\"light-lux\";if=\"sensor\"";
+
+    // keeps the logger with the level alive
+    private static final Logger CALIFORNIUM = Logger.getLogger("org.eclipse.californium");
+
+    private final ResourceDirecory rd = new ResourceDirecory();
+    private final InetAddress source;
+    private final int count;
+    private final int domains;
+
+    public RegistrationBenchmark(int count, int domains) throws Exception {
+        this.count = count;
+        this.domains = domains;
+        this.source = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = 1000000;
+        int domains = 10;
+        for (int index = 0; index < args.length; index += 2) {
+            if ("-n".equals(args[index]) && index + 1 < args.length) {
+                count = Integer.parseInt(args[index + 1]);
+            } else if ("-domains".equals(args[index]) && index + 1 < args.length) {
+                domains = Integer.parseInt(args[index + 1]);
+            } else {
+                System.err.println("Usage: RegistrationBenchmark [-n N] [-domains D]");
+                System.exit(-1);
+            }
+        }
+
+        // every registration logs on INFO
+        CALIFORNIUM.setLevel(Level.WARNING);
+
+        new RegistrationBenchmark(count, domains).run();
+    }
+
+    public void run() {
+        System.out.printf("%d endpoints in %d domains%n", count, domains);
+
+        phase("register", ResponseCode.CREATED);
+        phase("re-register", ResponseCode.CHANGED);
+        phase("update", ResponseCode.CHANGED);
+        phase("remove", ResponseCode.DELETED);
+        System.out.println("lifetimes: " + Endpoint.getLifetimeWheel().report());
+
+        if (rd.getRDEndpointCount() != 0 || !rd.getChildren().isEmpty()) {
+            System.out.printf("%d endpoints and %d children left after removal%n",
+                    rd.getRDEndpointCount(), rd.getChildren().size());
+        }
+    }
+
+    private void phase(String name, ResponseCode expected) {
+        int step = Math.max(1, count / 10);
+        int failed = 0;
+        long total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            ResponseCode code = execute(name, i);
+            if (code != expected) {
+                failed++;
+            }
+            if ((i + 1) % step == 0 || i + 1 == count) {
+                long now = System.nanoTime();
+                int done = (i % step) + 1;
+                System.out.printf(Locale.ROOT, "%-12s %8d: %8.0f ns/op%n", name, i + 1, (double) (now - start) / done);
+                total += now - start;
+                start = now;
+            }
+        }
+        System.out.printf(Locale.ROOT, "%-12s total %.2f s, %d failed, %d endpoints registered%n",
+                name, total / 1e9, failed, rd.getRDEndpointCount());
+    }
+
+    private ResponseCode execute(String phase, int i) {
+        String endpointName = "node" + i;
+        String domain = "domain" + (i % domains);
+        Request request;
+        switch (phase) {
+        case "register":
+        case "re-register":
+            request = newRequest(Request.newPost(), i);
+            request.getOptions().addUriQuery("ep=" + endpointName);
+            request.getOptions().addUriQuery("d=" + domain);
+            request.setPayload(LINKS);
+            BenchExchange exchange = new BenchExchange(request, rd);
+            rd.handlePOST(exchange);
+            return exchange.code;
+        default:
+            // the endpoint as found by the location, i.e., the child of the RD
+            Endpoint endpoint = rd.getRDEndpoint(endpointName, domain);
+            Resource child = endpoint == null ? null : rd.getChild(endpoint.getName());
+            if (!(child instanceof Endpoint)) {
+                return null;
+            }
+            if (phase.equals("update")) {
+                request = newRequest(Request.newPost(), i);
+                exchange = new BenchExchange(request, (Endpoint) child);
+                ((Endpoint) child).handlePOST(exchange);
+            } else {
+                request = newRequest(Request.newDelete(), i);
+                exchange = new BenchExchange(request, (Endpoint) child);
+                ((Endpoint) child).handleDELETE(exchange);
+            }
+            return exchange.code;
+        }
+    }
+
+    private Request newRequest(Request request, int i) {
+        request.setSource(source);
+        request.setSourcePort(1024 + (i % 60000));
+        return request;
+    }
+
+    /*
+     * Keeps the response code instead of sending the response.
+     */
+    private static class BenchExchange extends CoapExchange {
+
+        private ResponseCode code;
+
+        BenchExchange(Request request, CoapResource resource) {
+            super(new Exchange(request, Exchange.Origin.REMOTE), resource);
+        }
+
+        @Override
+        public void respond(ResponseCode code) {
+            this.code = code;
+        }
+
+        @Override
+        public void respond(ResponseCode code, String payload) {
+            this.code = code;
+        }
+    }
+}
@@ -19,25 +19,57 @@ package org.eclipse.californium.tools;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.network.CoapEndpoint;
 import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.tools.network.MultiSocketEndpoints;
+import org.eclipse.californium.tools.resources.Endpoint;
 import org.eclipse.californium.tools.resources.LookUpTop;
 import org.eclipse.californium.tools.resources.ResourceDirecory;
+import org.eclipse.californium.tools.resources.TimingWheel;
 
 /**
  * The class ResourceDirectory provides an experimental RD as described in
  * draft-ietf-core-resource-directory-04.
+ * <p>
+ * Usage: <code>ResourceDirectoryServer [-sockets N]</code>
+ * <p>
+ * With -sockets, the server receives on N endpoints per address, see
+ * {@link MultiSocketEndpoints}, so that registrations and lookups are decoded
+ * on up to N cores. The server reports the registrations and the expiry lag of their
+ * lifetimes every {@link #REPORT_INTERVAL} seconds.
  */
 public class ResourceDirectoryServer extends CoapServer {
 
     // exit codes for runtime errors
     public static final int ERR_INIT_FAILED = 1;
 
+    public static final long REPORT_INTERVAL = 60; // [s]
+
     public static void main(String[] args) {
 
+        int sockets = 1;
+        try {
+            if (args.length == 2 && "-sockets".equals(args[0])) {
+                sockets = Integer.parseInt(args[1]);
+            } else if (args.length != 0) {
+                sockets = 0;
+            }
+        } catch (NumberFormatException e) {
+            sockets = 0;
+        }
+        if (sockets < 1) {
+            System.err.println("Usage: ResourceDirectoryServer [-sockets N]");
+            System.exit(ERR_INIT_FAILED);
+        }
+
         // create server
         CoapServer server = new ResourceDirectoryServer();
 
@@ -45,13 +77,30 @@ public class ResourceDirectoryServer extends CoapServer {
         // (default interface address instead of original destination)
         for (InetAddress addr : EndpointManager.getEndpointManager().getNetworkInterfaces()) {
             if (!addr.isLinkLocalAddress()) {
-                server.addEndpoint(new CoapEndpoint(new InetSocketAddress(addr, CoAP.DEFAULT_COAP_PORT)));
+                InetSocketAddress address = new InetSocketAddress(addr, CoAP.DEFAULT_COAP_PORT);
+                if (sockets == 1) {
+                    server.addEndpoint(new CoapEndpoint(address));
+                } else {
+                    for (CoapEndpoint endpoint : MultiSocketEndpoints.create(address, sockets, NetworkConfig.getStandard())) {
+                        server.addEndpoint(endpoint);
+                    }
+                }
             }
         }
 
         server.start();
 
         System.out.printf(ResourceDirectoryServer.class.getSimpleName() + " listening on port %d.\n", server.getEndpoints().get(0).getAddress().getPort());
+
+        final TimingWheel lifetimes = Endpoint.getLifetimeWheel();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new Utils.DaemonThreadFactory("RDReport#"));
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("Lifetimes: " + lifetimes.report());
+            }
+        }, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
     }
 
     public ResourceDirectoryServer() {
@@ -0,0 +1,220 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An inverted index from attribute values to the items that carry them, e.g.,
+ * from resource types to the registered links. Each value maps to a sorted
+ * set of items, so that a lookup only touches the items of the most selective
+ * query parameter and returns them in a stable order.
+ * <p>
+ * The index reads the values of an item when it is added and when it is
+ * removed. An item must therefore be removed before its attributes change,
+ * and added again afterwards. Adding and removing the same item must not
+ * happen concurrently; lookups may run at any time.
+ *
+ * @param <T> the type of the items
+ */
+public abstract class AttributeIndex<T extends Comparable<T>> {
+
+    private final ConcurrentSkipListSet<T> items = new ConcurrentSkipListSet<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Posting<T>>> attributes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an index.
+     *
+     * @param attributes the names of the indexed attributes
+     */
+    protected AttributeIndex(String... attributes) {
+        for (String attribute : attributes) {
+            this.attributes.put(attribute, new ConcurrentHashMap<String, Posting<T>>());
+        }
+    }
+
+    /**
+     * Returns the current values of an attribute of an item.
+     */
+    protected abstract Collection<String> getValues(T item, String attribute);
+
+    public void add(T item) {
+        if (!items.add(item)) {
+            return;
+        }
+        size.incrementAndGet();
+        for (String attribute : attributes.keySet()) {
+            ConcurrentHashMap<String, Posting<T>> values = attributes.get(attribute);
+            for (String value : getValues(item, attribute)) {
+                post(values, value, item);
+            }
+        }
+    }
+
+    public void remove(T item) {
+        if (!items.remove(item)) {
+            return;
+        }
+        size.decrementAndGet();
+        for (String attribute : attributes.keySet()) {
+            ConcurrentHashMap<String, Posting<T>> values = attributes.get(attribute);
+            for (String value : getValues(item, attribute)) {
+                unpost(values, value, item);
+            }
+        }
+    }
+
+    private void post(ConcurrentHashMap<String, Posting<T>> values, String value, T item) {
+        while (true) {
+            Posting<T> posting = values.get(value);
+            if (posting == null) {
+                Posting<T> created = new Posting<>();
+                posting = values.putIfAbsent(value, created);
+                if (posting == null) {
+                    posting = created;
+                }
+            }
+            synchronized (posting) {
+                // retry if the posting was emptied and dropped meanwhile
+                if (values.get(value) == posting) {
+                    if (posting.items.add(item)) {
+                        posting.count++;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private void unpost(ConcurrentHashMap<String, Posting<T>> values, String value, T item) {
+        Posting<T> posting = values.get(value);
+        if (posting != null) {
+            synchronized (posting) {
+                if (posting.items.remove(item) && --posting.count == 0) {
+                    values.remove(value, posting);
+                }
+            }
+        }
+    }
+
+    public boolean isIndexed(String attribute) {
+        return attributes.containsKey(attribute);
+    }
+
+    /**
+     * Returns the number of indexed items.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns a live view of all items.
+     */
+    public NavigableSet<T> getAll() {
+        return Collections.unmodifiableNavigableSet(items);
+    }
+
+    /**
+     * Returns a live view of the items with the value of the attribute.
+     */
+    public NavigableSet<T> get(String attribute, String value) {
+        Posting<T> posting = getPosting(attribute, value);
+        if (posting == null) {
+            return Collections.emptyNavigableSet();
+        }
+        return Collections.unmodifiableNavigableSet(posting.items);
+    }
+
+    /**
+     * Returns a live view of the values of the attribute that at least one
+     * item carries.
+     */
+    public Set<String> getValues(String attribute) {
+        ConcurrentHashMap<String, Posting<T>> values = attributes.get(attribute);
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * Returns the smallest set of items that contains all matches of the
+     * query. Only parameters of indexed attributes with a single value
+     * narrow the set; wildcards, e.g., <code>rt=temp*</code>, and attributes
+     * that appear more than once, e.g., <code>et=a&amp;et=b</code>, which
+     * lookups may treat as alternatives, do not. The caller still has to
+     * match the returned items against the query.
+     *
+     * @param query the URI queries of a lookup
+     * @return a live view of the candidates, all items if no parameter is
+     *         indexed
+     */
+    public NavigableSet<T> select(List<String> query) {
+        Set<String> names = new HashSet<>();
+        Set<String> repeated = new HashSet<>();
+        for (String q : query) {
+            String name = KeyValuePair.parse(q).getName();
+            if (!names.add(name)) {
+                repeated.add(name);
+            }
+        }
+
+        NavigableSet<T> candidates = items;
+        int count = size.get();
+        for (String q : query) {
+            KeyValuePair kvp = KeyValuePair.parse(q);
+            String value = kvp.getValue();
+            if (!isIndexed(kvp.getName()) || kvp.isFlag() || value.endsWith("*") || value.indexOf(' ') >= 0
+                    || repeated.contains(kvp.getName())) {
+                continue;
+            }
+            Posting<T> posting = getPosting(kvp.getName(), value);
+            if (posting == null) {
+                // no item can match
+                return Collections.emptyNavigableSet();
+            }
+            if (posting.count < count) {
+                candidates = posting.items;
+                count = posting.count;
+            }
+        }
+        return Collections.unmodifiableNavigableSet(candidates);
+    }
+
+    private Posting<T> getPosting(String attribute, String value) {
+        ConcurrentHashMap<String, Posting<T>> values = attributes.get(attribute);
+        return values == null ? null : values.get(value);
+    }
+
+    /*
+     * The items with one attribute value. The count is kept under the lock of
+     * the posting, since the size of the set is not constant time.
+     */
+    private static final class Posting<T> {
+
+        private final ConcurrentSkipListSet<T> items = new ConcurrentSkipListSet<>();
+        private volatile int count;
+    }
+}
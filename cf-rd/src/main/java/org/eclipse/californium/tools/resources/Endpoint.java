@@ -20,19 +20,18 @@ package org.eclipse.californium.tools.resources;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TimerTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.CoapResource;
-import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.WebLink;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
@@ -41,12 +40,16 @@ import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
 
-public class Endpoint extends CoapResource {
+public class Endpoint extends CoapResource implements Comparable<Endpoint> {
 
     private static final Logger LOGGER = Logger.getLogger(Endpoint.class.getCanonicalName());
 
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
-            new Utils.DaemonThreadFactory("RDLifeTime#"));
+    // one shared wheel with a tick of a second, the unit of lifetimes
+    private static final TimingWheel lifetimes = new TimingWheel("RDLifeTime#", 1, TimeUnit.SECONDS);
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final long id = SEQUENCE.incrementAndGet();
 
     private int lifeTime = 86400;
 
@@ -54,7 +57,20 @@ public class Endpoint extends CoapResource {
     private String domain;
     private String context;
     private String endpointType = "";
-    private ScheduledFuture<?> ltExpiryFuture;
+    private final TimingWheel.Timeout ltExpiry = new TimingWheel.Timeout() {
+        @Override
+        protected void expire() {
+            LOGGER.log(Level.INFO, "Removing endpoint: {0} due end of life", getEndpointName());
+            delete();
+        }
+    };
+
+    // the registered links by their resource; also guards the indexing
+    private final ConcurrentHashMap<Resource, RegisteredLink> links = new ConcurrentHashMap<>();
+    // the directory whose indexes contain this endpoint while registered
+    private ResourceDirecory directory;
+    // the link to this endpoint for endpoint lookups, in UTF-8
+    private volatile byte[] encoded;
 
     public Endpoint(String endpointName, String domain)
             throws IllegalArgumentException {
@@ -92,10 +108,8 @@ public class Endpoint extends CoapResource {
 
         LOGGER.log(Level.INFO, "Removing endpoint: {0}", getContext());
 
-        if (ltExpiryFuture != null) {
-            // delete may be called from within the future
-            ltExpiryFuture.cancel(false);
-        }
+        // delete may be called from within the expiry
+        lifetimes.cancel(ltExpiry);
 
         super.delete();
     }
@@ -253,17 +267,17 @@ public class Endpoint extends CoapResource {
         // Get LifeTime(lt) and Context(con) from Query
         String queryLifeTime = queryList.get(LinkFormat.LIFE_TIME);
         String queryContext = queryList.get(LinkFormat.CONTEXT);
+        String queryEndpointType = queryList.get(LinkFormat.END_POINT_TYPE);
 
         // Parse LifeTime when present in Query to Integer
         Integer newLifeTime = null;
         if (queryLifeTime != null) {
             try {
                 newLifeTime = Integer.parseInt(queryLifeTime);
-                if (lifeTime < 60) {
-                    LOGGER.log(Level.INFO, "Enforcing minimal RD lifetime of 60 seconds (was {0})", this.lifeTime);
-                    lifeTime = 60;
+                if (newLifeTime < 60) {
+                    LOGGER.log(Level.INFO, "Enforcing minimal RD lifetime of 60 seconds (was {0})", newLifeTime);
+                    newLifeTime = 60;
                 }
-                this.setLifeTime(newLifeTime);
 
             } catch (NumberFormatException ex) {
                 throw new IllegalArgumentException("Lifetime has wrong NumberFormat (?lt)");
@@ -285,10 +299,18 @@ public class Endpoint extends CoapResource {
             }
         }
 
+        // Update Endpoint Type when present in Query(et)
+        if (queryEndpointType != null && !queryEndpointType.equals(this.endpointType)) {
+            this.setEndpointType(queryEndpointType);
+        }
+
         // Reset Lifetime counter
         this.setLifeTime(newLifeTime);
 
-        this.updateEndpointResources(request.getPayloadString());
+        // the indexes must not see the attributes of the links change
+        synchronized (links) {
+            this.updateEndpointResources(request.getPayloadString());
+        }
     }
 
     private void setContextFromRequest(Request request, String queryContext)
@@ -319,7 +341,7 @@ public class Endpoint extends CoapResource {
 
         // Set Context from gathered Values
         URI uri = new URI(scheme, null, host, port, null, null, null);
-        this.context = uri.toString();
+        this.setContext(uri.toString());
     }
 
     /*
@@ -377,15 +399,23 @@ public class Endpoint extends CoapResource {
      */
     private boolean updateEndpointResources(String linkFormat) {
 
-        Set<WebLink> links = LinkFormat.parse(linkFormat);
+        Set<WebLink> webLinks = LinkFormat.parse(linkFormat);
 
-        for (WebLink link : links) {
+        for (WebLink link : webLinks) {
 
             try {
                 LOGGER.log(Level.INFO, "Trying to add Link: {0}...", link.getURI());
                 Resource resource = addNodeResource(link);
                 LOGGER.log(Level.INFO, "Resulting Link: {0}...", resource.getURI());
 
+                RegisteredLink registered = links.get(resource);
+                if (registered == null) {
+                    registered = new RegisteredLink(this, resource);
+                    links.put(resource, registered);
+                } else if (directory != null) {
+                    directory.getLinkIndex().remove(registered);
+                }
+
                 // clear attributes to make registration idempotent
                 for (String attribute : resource.getAttributes().getAttributeKeySet()) {
                     resource.getAttributes().clearAttribute(attribute);
@@ -399,6 +429,11 @@ public class Endpoint extends CoapResource {
                 }
 
                 resource.getAttributes().setAttribute(LinkFormat.END_POINT, getEndpointName());
+                registered.encode();
+
+                if (directory != null) {
+                    directory.getLinkIndex().add(registered);
+                }
 
             } catch (URISyntaxException ex) {
                 LOGGER.log(Level.WARNING, "Link: {0} is invalid. Skipping...", link.getURI());
@@ -413,42 +448,82 @@ public class Endpoint extends CoapResource {
         
     }*/
     
+    /*
+    * Enters this Endpoint and its links into the indexes of the directory,
+    * or removes them, when the Endpoint is added to or deleted from it.
+     */
+    void attach(ResourceDirecory directory) {
+        synchronized (links) {
+            this.directory = directory;
+            directory.getEndpointIndex().add(this);
+            for (RegisteredLink link : links.values()) {
+                directory.getLinkIndex().add(link);
+            }
+        }
+    }
+
+    void detach(ResourceDirecory directory) {
+        synchronized (links) {
+            if (this.directory == directory) {
+                for (RegisteredLink link : links.values()) {
+                    directory.getLinkIndex().remove(link);
+                }
+                directory.getEndpointIndex().remove(this);
+                this.directory = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the registered links in the order of their registration.
+     */
+    public NavigableSet<RegisteredLink> getRegisteredLinks() {
+        return new TreeSet<>(links.values());
+    }
+
     /*
 	 * the following three methods are used to print the right string to put in
 	 * the payload to respond to the GET request.
      */
     public String toLinkFormat(List<String> query) {
 
-        // Create new StringBuilder
-        StringBuilder buffer = new StringBuilder();
-
-        // Iterate Tree with a Stack(DFS)
-        Stack<Resource> stack = new Stack<>();
-        stack.push(this);
-        while (!stack.isEmpty()) {
-            Resource resource = stack.pop();
-            stack.addAll(resource.getChildren());
-
-            // Is the Resource added as Endpoint Resource?
-            // If so it will have the END_POINT Attribute on it.
-            if (resource.getAttributes().containsAttribute(LinkFormat.END_POINT)
-                    && LinkFormat.matches(resource, query)) {
-                // Build LinkFormat
-                buffer.append("<")
-                        .append(this.getContext())
-                        .append(resource.getURI().substring(this.getURI().length()))
-                        .append(">")
-                        .append(LinkFormat.serializeAttributes(resource.getAttributes()))
-                        .append(",");
+        LinkFormatWriter writer = new LinkFormatWriter();
+
+        // Only the registered links carry the END_POINT Attribute
+        for (RegisteredLink link : getRegisteredLinks()) {
+            if (LinkFormat.matches(link.getResource(), query)) {
+                writer.appendLink(link.getEncoded());
             }
         }
 
-        // Remove last delimiter
-        if (buffer.length() > 0) {
-            buffer.deleteCharAt(buffer.length() - 1);
+        return writer.toString();
+    }
+
+    /**
+     * Returns the link to this endpoint as listed by an endpoint lookup,
+     * encoded in UTF-8. The array must not be modified.
+     */
+    public byte[] getEncoded() {
+        byte[] encoded = this.encoded;
+        if (encoded == null) {
+            synchronized (links) {
+                encoded = encode();
+            }
         }
+        return encoded;
+    }
 
-        return buffer.toString();
+    // called while guarding the links
+    private byte[] encode() {
+        StringBuilder link = new StringBuilder(64);
+        link.append("<").append(getContext()).append(">;")
+                .append(LinkFormat.END_POINT).append("=\"").append(getEndpointName()).append("\"");
+        link.append(";").append(LinkFormat.DOMAIN).append("=\"").append(getDomain()).append("\"");
+        if (!getEndpointType().isEmpty()) {
+            link.append(";").append(LinkFormat.RESOURCE_TYPE).append("=\"").append(getEndpointType()).append("\"");
+        }
+        encoded = link.toString().getBytes(CoAP.UTF8_CHARSET);
+        return encoded;
     }
 
     /*
@@ -467,7 +542,18 @@ public class Endpoint extends CoapResource {
     }
 
     public void setEndpointType(String endpointType) {
-        this.endpointType = endpointType;
+        // the Endpoint Type is indexed with the Endpoint and its links
+        synchronized (links) {
+            ResourceDirecory registered = directory;
+            if (registered != null) {
+                detach(registered);
+            }
+            this.endpointType = endpointType;
+            this.encode();
+            if (registered != null) {
+                attach(registered);
+            }
+        }
     }
 
     public String getContext() {
@@ -475,7 +561,14 @@ public class Endpoint extends CoapResource {
     }
 
     public void setContext(String context) {
-        this.context = context;
+        // the encoded links start with the context
+        synchronized (links) {
+            this.context = context;
+            this.encode();
+            for (RegisteredLink link : links.values()) {
+                link.encode();
+            }
+        }
     }
 
     public void setLifeTime() {
@@ -487,16 +580,21 @@ public class Endpoint extends CoapResource {
             this.lifeTime = newLifeTime;
         }
 
-        if (ltExpiryFuture != null) {
-            ltExpiryFuture.cancel(true);
-        }
+        // constant time, also to extend the lifetime
+        lifetimes.schedule(ltExpiry, this.lifeTime, TimeUnit.SECONDS);
+    }
 
-        ltExpiryFuture = scheduler.schedule(new Runnable() {
-            @Override
-            public void run() {
-                delete();
-            }
-        }, this.lifeTime, TimeUnit.SECONDS);
+    /**
+     * Returns the timing wheel that expires the registrations, e.g., for
+     * its expiry lag.
+     */
+    public static TimingWheel getLifetimeWheel() {
+        return lifetimes;
+    }
+
+    @Override
+    public int compareTo(Endpoint other) {
+        return Long.compare(id, other.id);
     }
 
     class ExpiryTask extends TimerTask {
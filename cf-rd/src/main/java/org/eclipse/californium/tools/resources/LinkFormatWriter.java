@@ -0,0 +1,169 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.coap.CoAP;
+
+/**
+ * Assembles a CoRE Link Format payload in UTF-8. Links are appended either as
+ * fragments that were encoded once in advance, see
+ * {@link RegisteredLink#getEncoded()}, or as strings that are encoded
+ * directly into the buffer. The buffer grows in chunks, so that appending
+ * never copies what has been written, and {@link #toByteArray()} copies
+ * once into the payload.
+ */
+public class LinkFormatWriter {
+
+    private static final int FIRST_CHUNK = 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] chunk;
+    private int position;
+    private int size;
+    private int links;
+
+    public LinkFormatWriter() {
+        this(FIRST_CHUNK);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param expected the expected payload size, for the first chunk
+     */
+    public LinkFormatWriter(int expected) {
+        this.chunk = new byte[Math.max(16, Math.min(expected, MAX_CHUNK))];
+        chunks.add(chunk);
+    }
+
+    /**
+     * Appends an encoded link, separated from the previous one.
+     */
+    public LinkFormatWriter appendLink(byte[] link) {
+        separate();
+        return append(link, 0, link.length);
+    }
+
+    /**
+     * Appends a link, separated from the previous one.
+     */
+    public LinkFormatWriter appendLink(CharSequence link) {
+        separate();
+        return append(link);
+    }
+
+    private void separate() {
+        if (links++ > 0) {
+            write((byte) ',');
+        }
+    }
+
+    public LinkFormatWriter append(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (position == chunk.length) {
+                grow();
+            }
+            int n = Math.min(length, chunk.length - position);
+            System.arraycopy(bytes, offset, chunk, position, n);
+            position += n;
+            size += n;
+            offset += n;
+            length -= n;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the UTF-8 encoding of the characters.
+     */
+    public LinkFormatWriter append(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                write((byte) c);
+            } else if (c < 0x800) {
+                write((byte) (0xC0 | (c >> 6)));
+                write((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, text.charAt(++i));
+                write((byte) (0xF0 | (code >> 18)));
+                write((byte) (0x80 | ((code >> 12) & 0x3F)));
+                write((byte) (0x80 | ((code >> 6) & 0x3F)));
+                write((byte) (0x80 | (code & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, as String.getBytes() does
+                write((byte) '?');
+            } else {
+                write((byte) (0xE0 | (c >> 12)));
+                write((byte) (0x80 | ((c >> 6) & 0x3F)));
+                write((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return this;
+    }
+
+    private void write(byte b) {
+        if (position == chunk.length) {
+            grow();
+        }
+        chunk[position++] = b;
+        size++;
+    }
+
+    private void grow() {
+        chunk = new byte[Math.min(chunk.length * 2, MAX_CHUNK)];
+        chunks.add(chunk);
+        position = 0;
+    }
+
+    /**
+     * Returns the number of links appended.
+     */
+    public int getLinkCount() {
+        return links;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of bytes written.
+     */
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        byte[] payload = new byte[size];
+        int offset = 0;
+        for (byte[] c : chunks) {
+            int n = Math.min(c.length, size - offset);
+            System.arraycopy(c, 0, payload, offset, n);
+            offset += n;
+        }
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return new String(toByteArray(), CoAP.UTF8_CHARSET);
+    }
+}
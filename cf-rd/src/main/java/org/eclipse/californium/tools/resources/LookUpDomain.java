@@ -17,8 +17,6 @@
  */
 package org.eclipse.californium.tools.resources;
 
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.TreeSet;
 
@@ -27,11 +25,11 @@ import org.eclipse.californium.core.coap.LinkFormat;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.server.resources.CoapExchange;
-import org.eclipse.californium.core.server.resources.Resource;
 
 public class LookUpDomain extends CoapResource {
 
     private ResourceDirecory rdResource = null;
+    private final Pagination.Cursors<String> cursors = new Pagination.Cursors<>();
 
     public LookUpDomain(String resourceIdentifier, ResourceDirecory rd) {
         super(resourceIdentifier);
@@ -41,13 +39,19 @@ public class LookUpDomain extends CoapResource {
     @Override
     public void handleGET(CoapExchange exchange) {
 
-        Collection<Resource> resources = rdResource.getChildren();
         TreeSet<String> availableDomains = new TreeSet<String>();
         String domainQuery = null;
-        Iterator<Resource> resIt = resources.iterator();
-        String result = "";
+        LinkFormatWriter result = new LinkFormatWriter();
+        Pagination<String> pagination;
 
         List<String> query = exchange.getRequestOptions().getUriQuery();
+        try {
+            pagination = Pagination.parse(query, cursors);
+        } catch (IllegalArgumentException ex) {
+            exchange.respond(ResponseCode.BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
         for (String q : query) {
             KeyValuePair kvp = KeyValuePair.parse(q);
 
@@ -56,28 +60,27 @@ public class LookUpDomain extends CoapResource {
             }
         }
 
-        while (resIt.hasNext()) {
-            Resource res = resIt.next();
-            if (res instanceof Endpoint) {
-                Endpoint node = (Endpoint) res;
-                if (domainQuery == null || domainQuery.equals(node.getDomain())) {
-                    availableDomains.add(node.getDomain());
-                }
+        // the index holds the domains with at least one endpoint
+        for (String domain : rdResource.getEndpointIndex().getValues(LinkFormat.DOMAIN)) {
+            if (domainQuery == null || domainQuery.equals(domain)) {
+                availableDomains.add(domain);
             }
         }
 
-        if (availableDomains.isEmpty()) {
-            exchange.respond(ResponseCode.NOT_FOUND);
-        } else {
-            Iterator<String> domIt = availableDomains.iterator();
-
-            while (domIt.hasNext()) {
-                String dom = domIt.next();
-                result += "</rd>;" + LinkFormat.DOMAIN + "=\"" + dom + "\",";
+        // the domains are in alphabetical order
+        for (String dom : pagination.start(availableDomains, availableDomains.size())) {
+            if (pagination.accept(dom)) {
+                result.appendLink("</rd>;" + LinkFormat.DOMAIN + "=\"" + dom + "\"");
+            } else if (pagination.isFull()) {
+                break;
             }
+        }
+        pagination.finish();
 
-            // also remove trailing comma
-            exchange.respond(ResponseCode.CONTENT, result.substring(0, result.length() - 1), MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+        if (result.isEmpty()) {
+            exchange.respond(ResponseCode.NOT_FOUND);
+        } else {
+            exchange.respond(ResponseCode.CONTENT, result.toByteArray(), MediaTypeRegistry.APPLICATION_LINK_FORMAT);
         }
     }
 }
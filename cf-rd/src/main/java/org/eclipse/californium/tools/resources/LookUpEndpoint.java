@@ -17,10 +17,9 @@
  */
 package org.eclipse.californium.tools.resources;
 
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.TreeSet;
 
 import org.eclipse.californium.core.CoapResource;
@@ -28,11 +27,11 @@ import org.eclipse.californium.core.coap.LinkFormat;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.server.resources.CoapExchange;
-import org.eclipse.californium.core.server.resources.Resource;
 
 public class LookUpEndpoint extends CoapResource {
 
     private ResourceDirecory rdResource = null;
+    private final Pagination.Cursors<Endpoint> cursors = new Pagination.Cursors<>();
 
     public LookUpEndpoint(String resourceIdentifier, ResourceDirecory rd) {
         super(resourceIdentifier);
@@ -41,13 +40,21 @@ public class LookUpEndpoint extends CoapResource {
 
     @Override
     public void handleGET(CoapExchange exchange) {
-        Collection<Resource> resources = rdResource.getChildren();
-        String result = "";
+        NavigableSet<Endpoint> endpoints;
+        Pagination<Endpoint> pagination;
+        LinkFormatWriter result = new LinkFormatWriter();
         String domainQuery = "";
         String endpointQuery = "";
         TreeSet<String> endpointTypeQuery = new TreeSet<String>();
 
         List<String> query = exchange.getRequestOptions().getUriQuery();
+        try {
+            pagination = Pagination.parse(query, cursors);
+        } catch (IllegalArgumentException ex) {
+            exchange.respond(ResponseCode.BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
         for (String q : query) {
             KeyValuePair kvp = KeyValuePair.parse(q);
 
@@ -64,32 +71,35 @@ public class LookUpEndpoint extends CoapResource {
             }
         }
 
-        Iterator<Resource> resIt = resources.iterator();
-
-        while (resIt.hasNext()) {
-            Resource res = resIt.next();
-            if (res instanceof Endpoint) {
-                Endpoint node = (Endpoint) res;
-                if ((domainQuery.isEmpty() || domainQuery.equals(node.getDomain()))
-                        && (endpointQuery.isEmpty() || endpointQuery.equals(node.getEndpointName()))
-                        && (endpointTypeQuery.isEmpty() || endpointTypeQuery.contains(node.getEndpointType()))) {
+        // only touch the endpoints of the most selective query
+        if (!domainQuery.isEmpty() && !endpointQuery.isEmpty()) {
+            Endpoint node = rdResource.getRDEndpoint(endpointQuery, domainQuery);
+            endpoints = new TreeSet<Endpoint>();
+            if (node != null) {
+                endpoints.add(node);
+            }
+        } else {
+            endpoints = rdResource.getEndpointIndex().select(query);
+        }
 
-                    result += "<" + node.getContext() + ">;" + LinkFormat.END_POINT + "=\"" + node.getEndpointName() + "\"";
-                    result += ";" + LinkFormat.DOMAIN + "=\"" + node.getDomain() + "\"";
-                    if (!node.getEndpointType().isEmpty()) {
-                        result += ";" + LinkFormat.RESOURCE_TYPE + "=\"" + node.getEndpointType() + "\"";
-                    }
+        for (Endpoint node : pagination.start(endpoints, rdResource.getRDEndpointCount())) {
+            if ((domainQuery.isEmpty() || domainQuery.equals(node.getDomain()))
+                    && (endpointQuery.isEmpty() || endpointQuery.equals(node.getEndpointName()))
+                    && (endpointTypeQuery.isEmpty() || endpointTypeQuery.contains(node.getEndpointType()))) {
 
-                    result += ",";
+                if (pagination.accept(node)) {
+                    result.appendLink(node.getEncoded());
+                } else if (pagination.isFull()) {
+                    break;
                 }
             }
         }
+        pagination.finish();
 
         if (result.isEmpty()) {
             exchange.respond(ResponseCode.NOT_FOUND);
         } else {
-            // also remove trailing comma
-            exchange.respond(ResponseCode.CONTENT, result.substring(0, result.length() - 1), MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+            exchange.respond(ResponseCode.CONTENT, result.toByteArray(), MediaTypeRegistry.APPLICATION_LINK_FORMAT);
         }
     }
 }
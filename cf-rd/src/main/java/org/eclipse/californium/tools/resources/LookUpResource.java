@@ -18,35 +18,44 @@
 package org.eclipse.californium.tools.resources;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.NavigableSet;
 
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.LinkFormat;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.server.resources.CoapExchange;
-import org.eclipse.californium.core.server.resources.Resource;
 
 public class LookUpResource extends CoapResource {
 
     private ResourceDirecory rdResource = null;
+    private final Pagination.Cursors<RegisteredLink> cursors = new Pagination.Cursors<>();
 
     public LookUpResource(String resourceIdentifier, ResourceDirecory rd) {
         super(resourceIdentifier);
         this.rdResource = rd;
     }
 
-    @Override //TODO: Fetch only the Resources with Attrinbute EP on it ! To Aavoid gettins subpaths
+    @Override
     public void handleGET(CoapExchange exchange) {
-        Collection<Resource> resources = rdResource.getChildren();
-        String result = "";
+        NavigableSet<RegisteredLink> links;
+        Pagination<RegisteredLink> pagination;
+        LinkFormatWriter result = new LinkFormatWriter();
         String domainQuery = "";
         String endpointQuery = "";
+        String endpointTypeQuery = "";
         List<String> toRemove = new ArrayList<>();
 
         List<String> query = exchange.getRequestOptions().getUriQuery();
+        try {
+            pagination = Pagination.parse(query, cursors);
+        } catch (IllegalArgumentException ex) {
+            exchange.respond(ResponseCode.BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
         for (String q : query) {
             KeyValuePair kvp = KeyValuePair.parse(q);
 
@@ -69,31 +78,45 @@ public class LookUpResource extends CoapResource {
                     toRemove.add(q);
                 }
             }
+
+            // the Endpoint Type is an attribute of the endpoint, not the link
+            if (LinkFormat.END_POINT_TYPE.equals(kvp.getName())) {
+                endpointTypeQuery = kvp.getValue();
+                toRemove.add(q);
+            }
+        }
+
+        // only touch the links of the most selective query
+        if (!domainQuery.isEmpty() && !endpointQuery.isEmpty()) {
+            Endpoint node = rdResource.getRDEndpoint(endpointQuery, domainQuery);
+            links = node == null ? Collections.<RegisteredLink>emptyNavigableSet() : node.getRegisteredLinks();
+        } else {
+            links = rdResource.getLinkIndex().select(query);
         }
 
         // clear handled queries from list
         query.removeAll(toRemove);
 
-        // check registered resources
-        Iterator<Resource> resIt = resources.iterator();
-
-        while (resIt.hasNext()) {
-            Resource res = resIt.next();
-            if (res instanceof Endpoint) {
-                Endpoint node = (Endpoint) res;
-                if ((domainQuery.isEmpty() || domainQuery.equals(node.getDomain()))
-                        && (endpointQuery.isEmpty() || endpointQuery.equals(node.getEndpointName()))) {
-                    String link = node.toLinkFormat(query);
-                    result += (!link.isEmpty()) ? link + "," : "";
+        // check registered resources, from the start of the page on
+        for (RegisteredLink link : pagination.start(links, rdResource.getLinkIndex().size())) {
+            Endpoint node = link.getEndpoint();
+            if ((domainQuery.isEmpty() || domainQuery.equals(node.getDomain()))
+                    && (endpointQuery.isEmpty() || endpointQuery.equals(node.getEndpointName()))
+                    && (endpointTypeQuery.isEmpty() || endpointTypeQuery.equals(node.getEndpointType()))
+                    && LinkFormat.matches(link.getResource(), query)) {
+                if (pagination.accept(link)) {
+                    result.appendLink(link.getEncoded());
+                } else if (pagination.isFull()) {
+                    break;
                 }
             }
         }
+        pagination.finish();
 
         if (result.isEmpty()) {
             exchange.respond(ResponseCode.NOT_FOUND);
         } else {
-            // also remove trailing comma
-            exchange.respond(ResponseCode.CONTENT, result.substring(0, result.length() - 1), MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+            exchange.respond(ResponseCode.CONTENT, result.toByteArray(), MediaTypeRegistry.APPLICATION_LINK_FORMAT);
         }
     }
 }
@@ -0,0 +1,237 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+/**
+ * The page and count parameters of a lookup. Results are returned in pages of
+ * count results, starting at result page * count of the stable order of the
+ * directory, i.e., the registration order. Without page, count limits the
+ * results to the first page.
+ * <p>
+ * Deep pages do not count the results from the start again: a lookup
+ * remembers in its {@link Cursors} after which item the next page of the same
+ * query starts. A cursor is an item, not an offset, so that a client paging
+ * through the results while endpoints come and go neither sees a result twice
+ * nor misses one that existed throughout. A page without cursor, e.g., the
+ * first request for a deep page, still skips page * count matches, so its work
+ * grows with the offset; a page that starts beyond the directory is empty
+ * without looking at any item.
+ * <p>
+ * Usage:
+ * <pre>
+ * for (T item : pagination.start(items, total)) {
+ *     if (matches(item)) {
+ *         if (pagination.accept(item)) {
+ *             write(item);
+ *         } else if (pagination.isFull()) {
+ *             break;
+ *         }
+ *     }
+ * }
+ * pagination.finish();
+ * </pre>
+ *
+ * @param <T> the type of the results
+ */
+public class Pagination<T> {
+
+    public static final String PAGE = "page";
+    public static final String COUNT = "count";
+
+    private final Cursors<T> cursors;
+    private final String key;
+    private final int page;
+    private final int count;
+
+    private long skip;
+    private int accepted;
+    private T last;
+    private boolean more;
+
+    private Pagination(Cursors<T> cursors, String key, int page, int count) {
+        this.cursors = cursors;
+        this.key = key;
+        this.page = page;
+        this.count = count;
+    }
+
+    /**
+     * Parses and removes the page and count parameters from the query.
+     *
+     * @param query the URI queries of the lookup
+     * @param cursors the cursors of the lookup resource
+     * @return the pagination, which accepts all results if the query has no
+     *         count
+     * @throws IllegalArgumentException if page or count are invalid
+     */
+    public static <T> Pagination<T> parse(List<String> query, Cursors<T> cursors)
+            throws IllegalArgumentException {
+
+        Integer page = null;
+        Integer count = null;
+        List<String> others = new ArrayList<>(query.size());
+        for (Iterator<String> it = query.iterator(); it.hasNext();) {
+            String q = it.next();
+            KeyValuePair kvp = KeyValuePair.parse(q);
+            if (PAGE.equals(kvp.getName())) {
+                page = parseNumber(kvp, "Page");
+                it.remove();
+            } else if (COUNT.equals(kvp.getName())) {
+                count = parseNumber(kvp, "Count");
+                it.remove();
+            } else {
+                others.add(q);
+            }
+        }
+
+        if (count == null) {
+            if (page != null) {
+                throw new IllegalArgumentException("Page without count (?page)");
+            }
+            return new Pagination<T>(null, null, 0, -1);
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("Count must be positive (?count)");
+        }
+
+        // the same query with the same count has the same pages
+        Collections.sort(others);
+        others.add(COUNT + "=" + count);
+        return new Pagination<T>(cursors, others.toString(), page == null ? 0 : page, count);
+    }
+
+    private static int parseNumber(KeyValuePair kvp, String name) {
+        try {
+            int value = kvp.getIntValue();
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException ex) {
+            // fall through
+        }
+        throw new IllegalArgumentException(name + " must be a non-negative number (?" + kvp.getName() + ")");
+    }
+
+    public boolean isPaged() {
+        return count >= 0;
+    }
+
+    /**
+     * Returns the items from the start of the page on, if a cursor is known,
+     * or all items.
+     *
+     * @param items the candidates in their stable order
+     * @param total an upper bound of the number of items, e.g., the size of
+     *            the directory
+     * @return the items to check, which are empty if the page starts beyond
+     *         the total
+     */
+    public NavigableSet<T> start(NavigableSet<T> items, int total) {
+        if (!isPaged() || page == 0) {
+            return items;
+        }
+        T cursor = cursors.get(key, page);
+        if (cursor == null) {
+            // a long, since page * count overflows an int
+            skip = (long) page * count;
+            if (skip >= total) {
+                return Collections.emptyNavigableSet();
+            }
+            return items;
+        }
+        return items.tailSet(cursor, false);
+    }
+
+    /**
+     * Counts a matching item.
+     *
+     * @return true if the item is on the page
+     */
+    public boolean accept(T item) {
+        if (!isPaged()) {
+            return true;
+        }
+        if (skip > 0) {
+            skip--;
+            return false;
+        }
+        if (accepted == count) {
+            more = true;
+            return false;
+        }
+        accepted++;
+        last = item;
+        return true;
+    }
+
+    /**
+     * Returns true once the page is complete and a further match was seen, so
+     * that the lookup can stop.
+     */
+    public boolean isFull() {
+        return more;
+    }
+
+    /**
+     * Remembers where the next page starts.
+     */
+    public void finish() {
+        if (more) {
+            cursors.put(key, page + 1, last);
+        }
+    }
+
+    /**
+     * The cursors of a lookup resource, by query and page. The least recently
+     * used cursors are dropped first.
+     */
+    public static class Cursors<T> {
+
+        public static final int DEFAULT_CAPACITY = 1024;
+
+        private final Map<String, T> cursors;
+
+        public Cursors() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public Cursors(final int capacity) {
+            this.cursors = new LinkedHashMap<String, T>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        public synchronized T get(String query, int page) {
+            return cursors.get(page + " " + query);
+        }
+
+        public synchronized void put(String query, int page, T last) {
+            cursors.put(page + " " + query, last);
+        }
+    }
+}
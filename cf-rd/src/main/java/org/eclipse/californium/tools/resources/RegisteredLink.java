@@ -0,0 +1,101 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.server.resources.Resource;
+
+/**
+ * A link that an endpoint has registered, i.e., a resource in the subtree of
+ * the {@link Endpoint} that carries the END_POINT attribute. Links are
+ * ordered by their registration, which keeps lookup results stable.
+ * <p>
+ * The link keeps its serialization in UTF-8, so that lookups copy bytes
+ * instead of serializing the attributes of every match. The endpoint
+ * re-encodes the link when its attributes or the context change.
+ */
+public final class RegisteredLink implements Comparable<RegisteredLink> {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final long id = SEQUENCE.incrementAndGet();
+    private final Endpoint endpoint;
+    private final Resource resource;
+    // the path of the resource below the endpoint
+    private final String path;
+    private volatile byte[] encoded;
+
+    RegisteredLink(Endpoint endpoint, Resource resource) {
+        this.endpoint = endpoint;
+        this.resource = resource;
+
+        StringBuilder path = new StringBuilder();
+        for (Resource node = resource; node != endpoint && node != null; node = node.getParent()) {
+            path.insert(0, node.getName()).insert(0, '/');
+        }
+        this.path = path.toString();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public Resource getResource() {
+        return resource;
+    }
+
+    /**
+     * Returns the target of the link at the context of the endpoint.
+     */
+    public String getTarget() {
+        return endpoint.getContext() + path;
+    }
+
+    /**
+     * Returns the link in CoRE Link Format, encoded in UTF-8. The array must
+     * not be modified.
+     */
+    public byte[] getEncoded() {
+        byte[] encoded = this.encoded;
+        if (encoded == null) {
+            encoded = encode();
+        }
+        return encoded;
+    }
+
+    /*
+     * Called by the endpoint after changes, while it guards its links.
+     */
+    byte[] encode() {
+        StringBuilder link = new StringBuilder(64);
+        link.append('<').append(getTarget()).append('>')
+                .append(LinkFormat.serializeAttributes(resource.getAttributes()));
+        byte[] encoded = link.toString().getBytes(CoAP.UTF8_CHARSET);
+        this.encoded = encoded;
+        return encoded;
+    }
+
+    @Override
+    public int compareTo(RegisteredLink other) {
+        return Long.compare(id, other.id);
+    }
+}
@@ -19,6 +19,9 @@ package org.eclipse.californium.tools.resources;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.LinkFormat;
@@ -26,8 +29,51 @@ import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
 
+/**
+ * The RD Function Set. Registered endpoints are children of this resource and
+ * are indexed by domain and endpoint name, so that registration, update and
+ * removal do not depend on the number of registered endpoints. The index
+ * follows the children: endpoints enter it when they are added and leave it
+ * when they are deleted, be it by a DELETE or by the end of their lifetime.
+ * <p>
+ * For lookups, the directory maintains inverted indexes from the values of
+ * the resource type, interface description, content type, domain and endpoint
+ * type to the registered links, and from domain and endpoint type to the
+ * endpoints. The indexes are updated with every registration and update.
+ */
 public class ResourceDirecory extends CoapResource {
 
+    private final ConcurrentHashMap<EndpointKey, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    private final AttributeIndex<RegisteredLink> linkIndex = new AttributeIndex<RegisteredLink>(
+            LinkFormat.RESOURCE_TYPE, LinkFormat.INTERFACE_DESCRIPTION, LinkFormat.CONTENT_TYPE,
+            LinkFormat.DOMAIN, LinkFormat.END_POINT_TYPE) {
+
+        @Override
+        protected Collection<String> getValues(RegisteredLink link, String attribute) {
+            switch (attribute) {
+            case LinkFormat.DOMAIN:
+            case LinkFormat.END_POINT_TYPE:
+                return endpointIndex.getValues(link.getEndpoint(), attribute);
+            default:
+                return splitValues(link.getResource().getAttributes().getAttributeValues(attribute));
+            }
+        }
+    };
+
+    private final AttributeIndex<Endpoint> endpointIndex = new AttributeIndex<Endpoint>(
+            LinkFormat.DOMAIN, LinkFormat.END_POINT_TYPE) {
+
+        @Override
+        protected Collection<String> getValues(Endpoint endpoint, String attribute) {
+            String value = LinkFormat.DOMAIN.equals(attribute) ? endpoint.getDomain() : endpoint.getEndpointType();
+            return value.isEmpty() ? Collections.<String>emptyList() : Collections.singletonList(value);
+        }
+    };
+
+    // counts the locations that had to be made unique across domains
+    private int collisions;
+
     public ResourceDirecory() {
         this("rd");
     }
@@ -120,7 +166,7 @@ public class ResourceDirecory extends CoapResource {
 
         ResponseCode responseCode;
 
-        LOGGER.log(Level.INFO, "Registration request from {0}:{1}", new Object[]{exchange.getSourceAddress().getHostName(), exchange.getSourcePort()});
+        LOGGER.log(Level.INFO, "Registration request from {0}:{1}", new Object[]{exchange.getSourceAddress().getHostAddress(), exchange.getSourcePort()});
 
         // Parse Queries
         QueryList queryList = QueryList.parse(exchange.getRequestOptions().getUriQuery());
@@ -131,7 +177,7 @@ public class ResourceDirecory extends CoapResource {
 
         // Check for Mandatory Variables
         if (endpointName == null) {
-            LOGGER.log(Level.INFO, "Missing Endpoint Name for {0}:{1}", new Object[]{exchange.getSourceAddress().getHostName(), exchange.getSourcePort()});
+            LOGGER.log(Level.INFO, "Missing Endpoint Name for {0}:{1}", new Object[]{exchange.getSourceAddress().getHostAddress(), exchange.getSourcePort()});
             exchange.respond(ResponseCode.BAD_REQUEST, "Missing Endpoint Name (?ep)");
             return;
         }
@@ -141,67 +187,172 @@ public class ResourceDirecory extends CoapResource {
 
         // Check if Endpoint is already registered with this Directory
         if (resource == null) {
-            // uncomment to use random resource names instead of registered Endpoint Name
-            /*
-			String randomName;
-			do {
-				randomName = Integer.toString((int) (Math.random() * 10000));
-			} while (getChild(randomName) != null);
-             */
-            try {
-                resource = new Endpoint(endpointName, domain);
-                responseCode = ResponseCode.CREATED;
+            // new registrations are serialized to keep names and locations unique
+            synchronized (this) {
+                resource = this.getRDEndpoint(endpointName, domain);
+                if (resource == null) {
+                    resource = this.createEndpoint(exchange, endpointName, domain);
+                    if (resource == null) {
+                        return;
+                    }
+                    responseCode = ResponseCode.CREATED;
+                } else {
+                    responseCode = ResponseCode.CHANGED;
+                }
+            }
+        } else {
+            responseCode = ResponseCode.CHANGED;
+        }
 
+        if (responseCode == ResponseCode.CHANGED) {
+            // set parameters of resource or abort on failure
+            try {
+                resource.setParameters(exchange.advanced().getRequest());
             } catch (IllegalArgumentException ex) {
                 exchange.respond(ResponseCode.BAD_REQUEST, ex.getMessage());
                 return;
             }
+        }
 
-        } else {
-            responseCode = ResponseCode.CHANGED;
+        // inform client about the location of the new resource
+        exchange.setLocationPath(resource.getURI());
+
+        // complete the request
+        exchange.respond(responseCode);
+    }
+
+    /*
+     * Creates and adds a new Endpoint, or responds with 4.00 and returns null.
+     */
+    private Endpoint createEndpoint(CoapExchange exchange, String endpointName, String domain) {
+        // uncomment to use random resource names instead of registered Endpoint Name
+        /*
+        String randomName;
+        do {
+            randomName = Integer.toString((int) (Math.random() * 10000));
+        } while (getChild(randomName) != null);
+         */
+        // the same Endpoint Name may be registered in another domain
+        String location = endpointName;
+        while (this.getChild(location) != null) {
+            location = endpointName + "-" + (++collisions);
         }
 
-        // set parameters of resource or abort on failure
+        Endpoint resource;
         try {
+            resource = new Endpoint(endpointName, domain, location);
             resource.setParameters(exchange.advanced().getRequest());
         } catch (IllegalArgumentException ex) {
             exchange.respond(ResponseCode.BAD_REQUEST, ex.getMessage());
-            return;
+            return null;
         }
 
         LOGGER.log(Level.INFO, "Adding new Endpoint: {0}", resource.getURI());
         this.add(resource);
+        return resource;
+    }
 
-        // inform client about the location of the new resource
-        exchange.setLocationPath(resource.getURI());
+    @Override
+    public synchronized void add(Resource child) {
+        super.add(child);
+        if (child instanceof Endpoint) {
+            Endpoint endpoint = (Endpoint) child;
+            endpoints.put(new EndpointKey(endpoint.getDomain(), endpoint.getEndpointName()), endpoint);
+            endpoint.attach(this);
+        }
+    }
 
-        // complete the request
-        exchange.respond(responseCode);
+    @Override
+    public synchronized boolean delete(Resource child) {
+        boolean deleted = super.delete(child);
+        if (deleted && child instanceof Endpoint) {
+            Endpoint endpoint = (Endpoint) child;
+            endpoints.remove(new EndpointKey(endpoint.getDomain(), endpoint.getEndpointName()), endpoint);
+            endpoint.detach(this);
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the endpoint registered with the name in the domain.
+     *
+     * @return the endpoint or null if it is not registered
+     */
+    public Endpoint getRDEndpoint(String endpointName, String domain) {
+        return endpoints.get(new EndpointKey(domain, endpointName));
+    }
+
+    /**
+     * Returns a live view of the registered endpoints.
+     */
+    public Collection<Endpoint> getRDEndpoints() {
+        return Collections.unmodifiableCollection(endpoints.values());
+    }
+
+    /**
+     * Returns the number of registered endpoints.
+     */
+    public int getRDEndpointCount() {
+        return endpoints.size();
+    }
+
+    /**
+     * Returns the index of the registered links by rt, if, ct, d and et.
+     */
+    public AttributeIndex<RegisteredLink> getLinkIndex() {
+        return linkIndex;
     }
 
-    private Endpoint getRDEndpoint(String endpointName, String domain) {
-        for (Resource child : this.getChildren()) {
-            if (child instanceof Endpoint) {
-                Endpoint childResource = (Endpoint) child;
-                if (childResource.getEndpointName().equals(endpointName)
-                        && childResource.getDomain().equals(domain)) {
+    /**
+     * Returns the index of the registered endpoints by d and et.
+     */
+    public AttributeIndex<Endpoint> getEndpointIndex() {
+        return endpointIndex;
+    }
 
-                    return childResource;
+    /*
+     * Attribute values such as rt="temperature-c sensor" are lists.
+     */
+    private static Collection<String> splitValues(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> split = new ArrayList<>(values.size());
+        for (String value : values) {
+            for (String part : value.split(" ")) {
+                if (!part.isEmpty()) {
+                    split.add(part);
                 }
             }
         }
-
-        return null;
+        return split;
     }
 
-    private Collection<Endpoint> getRDEndpoints() {
-        ArrayList<Endpoint> endpoints = new ArrayList<>();
-        for (Resource child : this.getChildren()) {
-            if (child instanceof Endpoint) {
-                endpoints.add((Endpoint) child);
-            }
+    /*
+     * The endpoint name is only unique within a domain.
+     */
+    private static final class EndpointKey {
+
+        private final String domain;
+        private final String endpointName;
+
+        EndpointKey(String domain, String endpointName) {
+            this.domain = domain;
+            this.endpointName = endpointName;
         }
 
-        return endpoints;
+        @Override
+        public int hashCode() {
+            return 31 * domain.hashCode() + endpointName.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof EndpointKey)) {
+                return false;
+            }
+            EndpointKey other = (EndpointKey) obj;
+            return domain.equals(other.domain) && endpointName.equals(other.endpointName);
+        }
     }
 }
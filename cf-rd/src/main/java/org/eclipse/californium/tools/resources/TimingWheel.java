@@ -0,0 +1,296 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.Utils;
+
+/**
+ * A hierarchical timing wheel for many long timeouts, such as the lifetimes
+ * of registrations. The wheel has {@link #LEVELS} levels of {@link #SLOTS}
+ * slots; a slot of level 0 spans one tick, a slot of level n spans
+ * SLOTS<sup>n</sup> ticks. A timeout is filed in the slot of the lowest level
+ * that reaches its deadline, and moves down a level whenever the wheel turns
+ * into its slot, until it expires from level 0 together with all other
+ * timeouts of its tick.
+ * <p>
+ * Each timeout is a node of a doubly-linked list, so that scheduling and
+ * cancelling are constant time and a timeout needs no memory besides the
+ * node it is, which its owner reuses. A timeout that is extended stays in
+ * its slot and only records the new deadline; it is filed again when the
+ * wheel reaches the slot. Timeouts expire up to two ticks late, as the
+ * deadlines are rounded up to ticks and the wheel turns once per tick, plus
+ * the time to expire the timeouts before them; the wheel reports this lag.
+ */
+public class TimingWheel {
+
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getCanonicalName());
+
+    public static final int SLOTS = 64;
+    private static final int SHIFT = 6;
+    /** Enough levels for 2^36 ticks, i.e., the maximum RD lifetime of 2^32 s */
+    public static final int LEVELS = 6;
+
+    private final ScheduledExecutorService clock;
+    private final long tickMillis;
+    private final long start = System.nanoTime();
+
+    // the slots by level, guarded by this
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    // the next tick to process, guarded by this
+    private long nextTick;
+    private int size;
+
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder lagSum = new LongAdder();
+    private final AtomicLong lagMax = new AtomicLong();
+
+    /**
+     * Creates a wheel that turns on its own daemon thread.
+     *
+     * @param name the name prefix of the thread
+     * @param tick the duration of a tick
+     * @param unit the unit of the tick
+     */
+    public TimingWheel(String name, long tick, TimeUnit unit) {
+        this.tickMillis = Math.max(1, unit.toMillis(tick));
+        this.clock = Executors.newSingleThreadScheduledExecutor(new Utils.DaemonThreadFactory(name));
+        clock.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance();
+                } catch (RuntimeException ex) {
+                    // keep the wheel turning
+                    LOGGER.log(Level.WARNING, "Timeout failed", ex);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Creates a wheel that only turns on advance(), for tests.
+     */
+    TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.clock = null;
+    }
+
+    /*
+     * Returns the time of the wheel in ms, overridden by tests.
+     */
+    long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Schedules or reschedules a timeout.
+     */
+    public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+        long now = now();
+        // saturate instead of overflowing into the past
+        long deadline = now + Math.min(unit.toMillis(delay), Long.MAX_VALUE - now);
+        synchronized (this) {
+            if (timeout.level >= 0 && timeout.deadline <= deadline) {
+                // later: filed again when the wheel reaches the slot
+                timeout.deadline = deadline;
+                return;
+            }
+            if (timeout.level >= 0) {
+                unlink(timeout);
+            } else {
+                size++;
+            }
+            timeout.deadline = deadline;
+            file(timeout);
+        }
+    }
+
+    /**
+     * Cancels a timeout, if scheduled.
+     */
+    public synchronized void cancel(Timeout timeout) {
+        if (timeout.level >= 0) {
+            unlink(timeout);
+            size--;
+        }
+    }
+
+    // guarded by this
+    private void file(Timeout timeout) {
+        // round up, never expire early, without overflowing
+        long tick = timeout.deadline / tickMillis + (timeout.deadline % tickMillis == 0 ? 0 : 1);
+        long ticks = tick - nextTick;
+        if (ticks < 0) {
+            tick = nextTick;
+            ticks = 0;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && ticks >= 1L << (SHIFT * (level + 1))) {
+            level++;
+        }
+        if (ticks >= 1L << (SHIFT * LEVELS)) {
+            tick = nextTick + (1L << (SHIFT * LEVELS)) - 1;
+        }
+        int slot = (int) (tick >>> (SHIFT * level)) & (SLOTS - 1);
+
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[level][slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[level][slot] = timeout;
+    }
+
+    // guarded by this
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+
+    /*
+     * Processes the ticks up to now and expires the due timeouts outside the
+     * lock, so that they may reschedule or cancel.
+     */
+    void advance() {
+        List<Timeout> due = new ArrayList<>();
+        long now = now();
+        synchronized (this) {
+            long current = now / tickMillis;
+            while (nextTick <= current) {
+                long tick = nextTick;
+                // cascade the slots that the wheel reaches on the higher levels
+                for (int level = 1; level < LEVELS; level++) {
+                    if ((tick & ((1L << (SHIFT * level)) - 1)) != 0) {
+                        break;
+                    }
+                    refile(level, (int) (tick >>> (SHIFT * level)) & (SLOTS - 1), now, due);
+                }
+                refile(0, (int) tick & (SLOTS - 1), now, due);
+                nextTick++;
+            }
+        }
+
+        for (Timeout timeout : due) {
+            synchronized (this) {
+                // rescheduled meanwhile
+                if (timeout.level >= 0) {
+                    continue;
+                }
+            }
+            long lag = Math.max(0, now() - timeout.deadline);
+            expired.increment();
+            lagSum.add(lag);
+            long max;
+            while (lag > (max = lagMax.get()) && !lagMax.compareAndSet(max, lag)) {
+                // retry
+            }
+            timeout.expire();
+        }
+    }
+
+    // guarded by this
+    private void refile(int level, int slot, long now, List<Timeout> due) {
+        Timeout timeout = slots[level][slot];
+        slots[level][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.level = -1;
+            if (timeout.deadline <= now) {
+                size--;
+                due.add(timeout);
+            } else {
+                file(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Returns the number of scheduled timeouts.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of expired timeouts.
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * Returns the mean time from the deadlines to the expiry.
+     */
+    public double getMeanLag() {
+        long count = expired.sum();
+        return count == 0 ? 0 : (double) lagSum.sum() / count;
+    }
+
+    /**
+     * Returns the maximum time from a deadline to the expiry.
+     */
+    public long getMaxLag() {
+        return lagMax.get();
+    }
+
+    public String report() {
+        return String.format(Locale.ROOT, "%d scheduled, %d expired, expiry lag mean %.1f ms, max %d ms",
+                size(), getExpired(), getMeanLag(), getMaxLag());
+    }
+
+    /**
+     * A timeout of the wheel. The owner keeps one instance and schedules it
+     * again to extend it.
+     */
+    public abstract static class Timeout {
+
+        // guarded by the wheel
+        private Timeout prev;
+        private Timeout next;
+        private long deadline;
+        private int level = -1;
+        private int slot;
+
+        /**
+         * Called on the thread of the wheel when the timeout expires.
+         */
+        protected abstract void expire();
+    }
+}
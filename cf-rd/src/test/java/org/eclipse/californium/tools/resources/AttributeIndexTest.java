@@ -0,0 +1,73 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AttributeIndexTest {
+
+    private AttributeIndex<String> index;
+
+    @Before
+    public void setUp() {
+        // the items are "type:name", indexed by type
+        index = new AttributeIndex<String>("et") {
+
+            @Override
+            protected Collection<String> getValues(String item, String attribute) {
+                return Collections.singleton(item.substring(0, item.indexOf(':')));
+            }
+        };
+        index.add("a:1");
+        index.add("a:2");
+        index.add("b:3");
+        index.add("c:4");
+        index.add("c:5");
+        index.add("c:6");
+    }
+
+    @Test
+    public void testSingleValueNarrows() {
+        assertEquals(Arrays.asList("b:3"), select("et=b"));
+        assertTrue(select("et=missing").isEmpty());
+    }
+
+    @Test
+    public void testRepeatedValuesDoNotNarrow() {
+        // alternatives, so neither posting alone contains all matches
+        assertEquals(6, select("et=a", "et=b").size());
+        assertEquals(6, select("et=a", "et=missing").size());
+    }
+
+    @Test
+    public void testUnindexedAndWildcardsDoNotNarrow() {
+        assertEquals(6, select("rt=x").size());
+        assertEquals(6, select("et=c*").size());
+        assertEquals(6, select("et=a b").size());
+    }
+
+    private List<String> select(String... query) {
+        return Arrays.asList(index.select(Arrays.asList(query)).toArray(new String[0]));
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LinkFormatWriterTest {
+
+    @Test
+    public void testEmpty() {
+        LinkFormatWriter writer = new LinkFormatWriter();
+        assertTrue(writer.isEmpty());
+        assertEquals(0, writer.size());
+        assertEquals(0, writer.toByteArray().length);
+    }
+
+    @Test
+    public void testSeparatesLinks() {
+        LinkFormatWriter writer = new LinkFormatWriter();
+        writer.appendLink("</rd/node1/a>;rt=\"x\"");
+        writer.appendLink("</rd/node1/b>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, writer.getLinkCount());
+        assertEquals("</rd/node1/a>;rt=\"x\",</rd/node1/b>", writer.toString());
+    }
+
+    @Test
+    public void testEncodesLikeStringGetBytes() {
+        // one, two, three, and four byte sequences, and unpaired surrogates
+        String text = "a\u00e4\u00df\u20ac\u4e2d\ud83d\ude00\ud83d|\ude00";
+        LinkFormatWriter writer = new LinkFormatWriter();
+        writer.append(text);
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, writer.size());
+    }
+
+    @Test
+    public void testRandomLinksAcrossChunks() {
+        Random random = new Random(1);
+        for (int run = 0; run < 100; run++) {
+            // small initial chunks, so that the links span several chunks
+            LinkFormatWriter writer = new LinkFormatWriter(random.nextInt(100));
+            StringBuilder expected = new StringBuilder();
+            int links = random.nextInt(300);
+            for (int i = 0; i < links; i++) {
+                String link = randomText(random, random.nextInt(200));
+                if (i > 0) {
+                    expected.append(',');
+                }
+                expected.append(link);
+                if (random.nextBoolean()) {
+                    writer.appendLink(link);
+                } else {
+                    writer.appendLink(link.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            byte[] bytes = expected.toString().getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals("run " + run, bytes, writer.toByteArray());
+            assertEquals(bytes.length, writer.size());
+            assertEquals(links, writer.getLinkCount());
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(5)) {
+            case 0:
+                text.append((char) (0x80 + random.nextInt(0x780)));
+                break;
+            case 1:
+                text.append((char) (0x800 + random.nextInt(0xD000 - 0x800)));
+                break;
+            case 2:
+                text.append("\ud83d\ude00");
+                break;
+            default:
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PaginationTest {
+
+    private TreeSet<Integer> items;
+    private Pagination.Cursors<Integer> cursors;
+    // the number of items the last lookup has looked at
+    private int visited;
+
+    @Before
+    public void setUp() {
+        items = new TreeSet<>();
+        for (int i = 0; i < 40; i++) {
+            items.add(i);
+        }
+        cursors = new Pagination.Cursors<>();
+    }
+
+    @Test
+    public void testWithoutCount() {
+        assertEquals(evens(0, 40), lookup());
+    }
+
+    @Test
+    public void testCountOnly() {
+        assertEquals(Arrays.asList(0, 2, 4), lookup("count=3"));
+    }
+
+    @Test
+    public void testPageWithoutCursor() {
+        assertEquals(Arrays.asList(20, 22, 24, 26, 28), lookup("rt=x", "page=2", "count=5"));
+    }
+
+    @Test
+    public void testConsecutivePagesUseCursor() {
+        List<Integer> all = new ArrayList<>();
+        for (int page = 0; page < 4; page++) {
+            all.addAll(lookup("count=5", "page=" + page, "rt=x"));
+            // a page looks at its five matches, the next one, and the odd items between
+            assertTrue("visited " + visited, visited <= 12);
+        }
+        assertEquals(evens(0, 40), all);
+    }
+
+    @Test
+    public void testCursorIsPerQuery() {
+        lookup("count=5", "rt=x");
+        assertEquals(Arrays.asList(20, 22, 24, 26, 28), lookup("count=5", "page=2", "rt=x"));
+        assertEquals(Arrays.asList(10, 12, 14, 16, 18), lookup("count=5", "page=1", "rt=y"));
+    }
+
+    @Test
+    public void testPagesAreContinuousAcrossRemovals() {
+        List<Integer> all = new ArrayList<>();
+        all.addAll(lookup("count=5", "page=0"));
+        all.addAll(lookup("count=5", "page=1"));
+        // endpoints before and after the cursor go away, a new one comes
+        items.remove(2);
+        items.remove(24);
+        items.add(100);
+        for (int page = 2; page < 5; page++) {
+            all.addAll(lookup("count=5", "page=" + page));
+        }
+        List<Integer> expected = evens(0, 40);
+        expected.remove(Integer.valueOf(24));
+        expected.add(100);
+        assertEquals(expected, all);
+    }
+
+    @Test
+    public void testPageBeyondItems() {
+        assertEquals(new ArrayList<Integer>(), lookup("count=5", "page=4"));
+    }
+
+    @Test
+    public void testOffsetDoesNotOverflow() {
+        // page * count wraps around to 0 as an int
+        assertEquals(new ArrayList<Integer>(), lookup("page=1073741824", "count=4"));
+        assertEquals(0, visited);
+        assertEquals(new ArrayList<Integer>(), lookup("page=2147483647", "count=2147483647"));
+        assertEquals(0, visited);
+    }
+
+    @Test
+    public void testRemovesParameters() {
+        List<String> query = new ArrayList<>(Arrays.asList("rt=x", "page=1", "count=2"));
+        Pagination.parse(query, cursors);
+        assertEquals(Arrays.asList("rt=x"), query);
+    }
+
+    @Test
+    public void testInvalidParameters() {
+        assertInvalid("Page without count (?page)", "page=1");
+        assertInvalid("Count must be positive (?count)", "count=0");
+        assertInvalid("Count must be a non-negative number (?count)", "count=-1");
+        assertInvalid("Page must be a non-negative number (?page)", "page=x", "count=1");
+    }
+
+    private void assertInvalid(String message, String... query) {
+        try {
+            lookup(query);
+            fail("no error for " + Arrays.toString(query));
+        } catch (IllegalArgumentException ex) {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+
+    /*
+     * Looks up the even items, as a lookup resource does.
+     */
+    private List<Integer> lookup(String... query) {
+        Pagination<Integer> pagination = Pagination.parse(new ArrayList<>(Arrays.asList(query)), cursors);
+        List<Integer> result = new ArrayList<>();
+        NavigableSet<Integer> start = pagination.start(items, items.size());
+        visited = 0;
+        for (Integer item : start) {
+            visited++;
+            if (item % 2 == 0) {
+                if (pagination.accept(item)) {
+                    result.add(item);
+                } else if (pagination.isFull()) {
+                    break;
+                }
+            }
+        }
+        pagination.finish();
+        return result;
+    }
+
+    private static List<Integer> evens(int from, int to) {
+        List<Integer> evens = new ArrayList<>();
+        for (int i = from; i < to; i += 2) {
+            evens.add(i);
+        }
+        return evens;
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * *****************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *****************************************************************************
+ */
+package org.eclipse.californium.tools.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 10; // [ms]
+
+    private ManualWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new ManualWheel();
+    }
+
+    @Test
+    public void testExpiresAtRoundedDeadline() {
+        wheel.advanceTo(25);
+        Recorder timeout = new Recorder();
+        wheel.schedule(timeout, 42, TimeUnit.MILLISECONDS);
+        assertEquals(1, wheel.size());
+        // the deadline 67 ms is rounded up to the tick at 70 ms
+        wheel.advanceTo(69);
+        assertEquals(0, timeout.count());
+        wheel.advanceTo(70);
+        assertEquals(1, timeout.count());
+        assertEquals(70, timeout.getTime(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCascadesAtLevelBoundaries() {
+        // start off a slot boundary, so that the levels are not aligned
+        wheel.advanceTo(37 * TICK);
+        for (int level = 1; level <= 4; level++) {
+            long span = 1L << (6 * level);
+            for (long ticks : new long[] { span - 1, span, span + 1 }) {
+                Recorder timeout = new Recorder();
+                long deadline = wheel.now() + ticks * TICK;
+                wheel.schedule(timeout, ticks * TICK, TimeUnit.MILLISECONDS);
+                wheel.advanceTo(deadline - TICK);
+                assertEquals("early at level " + level, 0, timeout.count());
+                wheel.advanceTo(deadline);
+                assertEquals("missed at level " + level, 1, timeout.count());
+                assertEquals(deadline, timeout.getTime(0));
+            }
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRandomTimeoutsNeitherEarlyNorTwice() {
+        Random random = new Random(1);
+        int count = 20000;
+        Recorder[] timeouts = new Recorder[count];
+        for (int i = 0; i < count; i++) {
+            timeouts[i] = new Recorder();
+            // up to level 3, a tenth of them on the higher levels
+            long delay = random.nextInt(i % 10 == 0 ? 3000000 : 30000);
+            timeouts[i].deadline = wheel.now() + delay;
+            wheel.schedule(timeouts[i], delay, TimeUnit.MILLISECONDS);
+        }
+        long end = 3000000 + 2 * TICK;
+        while (wheel.now() < end) {
+            wheel.advanceTo(wheel.now() + TICK);
+        }
+        assertEquals(0, wheel.size());
+        for (Recorder timeout : timeouts) {
+            assertEquals(1, timeout.count());
+            long lag = timeout.getTime(0) - timeout.deadline;
+            assertTrue("lag " + lag, lag >= 0 && lag < TICK);
+        }
+    }
+
+    @Test
+    public void testCancelledAndRescheduled() {
+        Random random = new Random(2);
+        int count = 10000;
+        Recorder[] timeouts = new Recorder[count];
+        for (int i = 0; i < count; i++) {
+            timeouts[i] = new Recorder();
+            long delay = random.nextInt(100000);
+            timeouts[i].deadline = delay;
+            wheel.schedule(timeouts[i], delay, TimeUnit.MILLISECONDS);
+        }
+        wheel.advanceTo(5000);
+        int pending = 0;
+        for (int i = 0; i < count; i++) {
+            if (timeouts[i].count() > 0) {
+                continue;
+            }
+            if (i % 3 == 0) {
+                wheel.cancel(timeouts[i]);
+                timeouts[i].deadline = -1;
+            } else {
+                // extend or shorten
+                long delay = random.nextInt(100000);
+                timeouts[i].deadline = wheel.now() + delay;
+                wheel.schedule(timeouts[i], delay, TimeUnit.MILLISECONDS);
+                pending++;
+            }
+        }
+        assertEquals(pending, wheel.size());
+        while (wheel.now() < 110000) {
+            wheel.advanceTo(wheel.now() + TICK);
+        }
+        assertEquals(0, wheel.size());
+        for (Recorder timeout : timeouts) {
+            if (timeout.deadline < 0) {
+                assertEquals("cancelled timeout expired", 0, timeout.count());
+            } else {
+                assertEquals(1, timeout.count());
+                assertTrue(timeout.getTime(0) >= timeout.deadline);
+            }
+        }
+    }
+
+    @Test
+    public void testExtendAndShorten() {
+        Recorder timeout = new Recorder();
+        wheel.schedule(timeout, 100, TimeUnit.MILLISECONDS);
+        // extending only records the new deadline
+        wheel.schedule(timeout, 1000, TimeUnit.MILLISECONDS);
+        wheel.advanceTo(990);
+        assertEquals(0, timeout.count());
+        wheel.advanceTo(1000);
+        assertEquals(1, timeout.count());
+
+        // shortening moves the timeout down from a high level
+        wheel.schedule(timeout, 1000000, TimeUnit.SECONDS);
+        wheel.schedule(timeout, 200, TimeUnit.MILLISECONDS);
+        wheel.advanceTo(1200);
+        assertEquals(2, timeout.count());
+        assertEquals(1200, timeout.getTime(1));
+    }
+
+    @Test
+    public void testExpiryMayReschedule() {
+        Recorder timeout = new Recorder() {
+
+            @Override
+            protected void expire() {
+                super.expire();
+                if (count() < 3) {
+                    wheel.schedule(this, 100, TimeUnit.MILLISECONDS);
+                }
+            }
+        };
+        wheel.schedule(timeout, 100, TimeUnit.MILLISECONDS);
+        while (wheel.now() < 1000) {
+            wheel.advanceTo(wheel.now() + TICK);
+        }
+        assertEquals(3, timeout.count());
+        assertEquals(300, timeout.getTime(2));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testBeyondRange() {
+        Recorder saturated = new Recorder();
+        Recorder clamped = new Recorder();
+        wheel.advanceTo(TICK);
+        // the deadline saturates instead of overflowing into the past
+        wheel.schedule(saturated, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        // beyond the 2^36 ticks of the levels, filed on the last level
+        wheel.schedule(clamped, (1L << 40) * TICK, TimeUnit.MILLISECONDS);
+        assertEquals(2, wheel.size());
+        // past the cascades of the lower four levels
+        wheel.advanceTo((1L << 24) * TICK + 2 * TICK);
+        assertEquals(0, saturated.count());
+        assertEquals(0, clamped.count());
+        assertEquals(2, wheel.size());
+        wheel.cancel(saturated);
+        wheel.cancel(clamped);
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * A wheel without thread that turns on the time set by the test.
+     */
+    private static class ManualWheel extends TimingWheel {
+
+        private long now;
+
+        private ManualWheel() {
+            super(TICK);
+        }
+
+        @Override
+        long now() {
+            return now;
+        }
+
+        private void advanceTo(long time) {
+            now = time;
+            advance();
+        }
+    }
+
+    /**
+     * Records the times it expires at.
+     */
+    private class Recorder extends TimingWheel.Timeout {
+
+        private final List<Long> times = new ArrayList<>();
+        private long deadline;
+
+        @Override
+        protected void expire() {
+            times.add(wheel.now());
+        }
+
+        int count() {
+            return times.size();
+        }
+
+        long getTime(int index) {
+            return times.get(index);
+        }
+    }
+}
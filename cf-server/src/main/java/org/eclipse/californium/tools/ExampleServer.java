@@ -15,34 +15,177 @@
  ******************************************************************************/
 package org.eclipse.californium.tools;
 
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
 
+import org.eclipse.californium.tools.cache.ResponseCache;
+import org.eclipse.californium.tools.executor.ExecutorModel;
+import org.eclipse.californium.tools.executor.InstrumentedExecutor;
+import org.eclipse.californium.tools.metrics.MetricsRegistry;
+import org.eclipse.californium.tools.network.AdmissionController;
+import org.eclipse.californium.tools.network.MultiSocketEndpoints;
+import org.eclipse.californium.tools.resources.BenchResource;
 import org.eclipse.californium.tools.resources.FibonacciResource;
 import org.eclipse.californium.tools.resources.HelloWorldResource;
 import org.eclipse.californium.tools.resources.ImageResource;
 import org.eclipse.californium.tools.resources.LargeResource;
+import org.eclipse.californium.tools.resources.MetricsResource;
 import org.eclipse.californium.tools.resources.MirrorResource;
 import org.eclipse.californium.tools.resources.StorageResource;
+import org.eclipse.californium.tools.storage.StorageEngine;
 
 /**
  * This is an example server that contains a few resources for demonstration.
+ * <p>
+ * Usage: <code>ExampleServer [-executor MODEL] [-threads N] [-sockets N]
+ * [-queue N] [-rate R] [-storage FILE]</code>,
+ * where MODEL is one of scheduled (default), fixed, forkjoin, or virtual; see
+ * {@link ExecutorModel}. With -sockets, the server receives on N endpoints
+ * for port 5683, see {@link MultiSocketEndpoints}. The server reports the
+ * queue depth and task latency of the executor every {@link #REPORT_INTERVAL}
+ * seconds, and all metrics are available at the resource /metrics.
+ * <p>
+ * With -queue, the requests pass an {@link AdmissionController} with a
+ * queue of N requests in front of the resources, and with -rate, each
+ * source address may send R requests per second. Requests beyond are
+ * refused with 5.03 and a Max-Age backoff hint.
+ * <p>
+ * With -storage, the resource /storage persists its content in a log of
+ * {@link StorageEngine#DEFAULT_LOG_SIZE} bytes at FILE, which survives
+ * restarts. Otherwise, the content is only kept in memory.
  */
 public class ExampleServer {
 	
+	public static final long REPORT_INTERVAL = 10; // [s]
+	
 	public static void main(String[] args) throws Exception {
+		ExecutorModel model = ExecutorModel.SCHEDULED;
+		int threads = 0;
+		int sockets = 0;
+		int queue = 0;
+		double rate = 0;
+		String storage = null;
+		for (int index = 0; index < args.length; index += 2) {
+			if ("-executor".equals(args[index]) && index + 1 < args.length) {
+				model = ExecutorModel.parse(args[index + 1]);
+			} else if ("-threads".equals(args[index]) && index + 1 < args.length) {
+				threads = Integer.parseInt(args[index + 1]);
+			} else if ("-sockets".equals(args[index]) && index + 1 < args.length) {
+				sockets = Integer.parseInt(args[index + 1]);
+			} else if ("-queue".equals(args[index]) && index + 1 < args.length) {
+				queue = Integer.parseInt(args[index + 1]);
+			} else if ("-rate".equals(args[index]) && index + 1 < args.length) {
+				rate = Double.parseDouble(args[index + 1]);
+			} else if ("-storage".equals(args[index]) && index + 1 < args.length) {
+				storage = args[index + 1];
+			} else {
+				System.err.println("Usage: ExampleServer [-executor scheduled|fixed|forkjoin|virtual] [-threads N] [-sockets N] [-queue N] [-rate R] [-storage FILE]");
+				System.exit(-1);
+			}
+		}
+		
+		final InstrumentedExecutor executor;
+		try {
+			executor = model.create(threads);
+		} catch (UnsupportedOperationException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+			return;
+		}
+		System.out.println("Executor model " + executor.getName());
+		
 		CoapServer server = new CoapServer();
-		server.setExecutor(Executors.newScheduledThreadPool(4));
+		server.setExecutor(executor);
+		if (sockets > 0) {
+			for (CoapEndpoint endpoint : MultiSocketEndpoints.create(new InetSocketAddress(CoAP.DEFAULT_COAP_PORT),
+					sockets, NetworkConfig.getStandard())) {
+				server.addEndpoint(endpoint);
+			}
+		}
+		MetricsRegistry metrics = MetricsRegistry.getDefault();
+		if (queue > 0 || rate > 0) {
+			int handlers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+			final AdmissionController admission = new AdmissionController(server.getMessageDeliverer(), handlers,
+					queue, rate, (int) Math.ceil(rate));
+			server.setMessageDeliverer(admission);
+			System.out.println("Admission control with " + handlers + " handlers, queue " + queue + ", rate " + rate + "/s per source");
+			metrics.registerGauge("admission_queue_depth", new MetricsRegistry.Gauge() {
+				public long getValue() {
+					return admission.getQueueDepth();
+				}
+			});
+			metrics.registerGauge("admission_admitted_total", new MetricsRegistry.Gauge() {
+				public long getValue() {
+					return admission.getAdmitted();
+				}
+			});
+			metrics.registerGauge("admission_refused_total", new MetricsRegistry.Gauge() {
+				public long getValue() {
+					return admission.getQueueFull() + admission.getExpired() + admission.getRateLimited();
+				}
+			});
+			metrics.registerGauge("admission_sources", new MetricsRegistry.Gauge() {
+				public long getValue() {
+					return admission.getSources();
+				}
+			});
+			metrics.registerGauge("admission_overflowed_total", new MetricsRegistry.Gauge() {
+				public long getValue() {
+					return admission.getOverflowed();
+				}
+			});
+			metrics.registerHistogram("admission_wait", admission.getWaitLatency());
+		}
+		executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				System.out.println(executor.report());
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+		
+		metrics.registerGauge("executor_queue_depth", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return executor.getQueueDepth();
+			}
+		});
+		metrics.registerGauge("executor_rejected_total", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return executor.getRejected();
+			}
+		});
+		metrics.registerHistogram("executor_wait", executor.getWaitLatency());
+		metrics.registerHistogram("executor_run", executor.getRunLatency());
+		
+		final ResponseCache cache = new ResponseCache();
+		metrics.registerGauge("response_cache_entries", new MetricsRegistry.Gauge() {
+			public long getValue() {
+				return cache.size();
+			}
+		});
+		FibonacciResource fibonacci = new FibonacciResource("fibonacci");
+		fibonacci.setResponseCache(cache);
 		
 		server.add(new HelloWorldResource("hello"));
-		server.add(new FibonacciResource("fibonacci"));
-		server.add(new StorageResource("storage"));
+		server.add(fibonacci);
+		if (storage != null) {
+			server.add(new StorageResource("storage", new StorageEngine(new File(storage),
+					StorageEngine.DEFAULT_MAX_BYTES, StorageEngine.DEFAULT_LOG_SIZE)));
+			System.out.println("Storage log " + storage);
+		} else {
+			server.add(new StorageResource("storage"));
+		}
 		server.add(new ImageResource("image"));
 		server.add(new MirrorResource("mirror"));
 		server.add(new LargeResource("large"));
+		server.add(new MetricsResource("metrics"));
+		server.add(new BenchResource("bench"));
 		
 		server.start();
 	}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+
+/**
+ * A cache of 2.05 responses to GET requests, keyed by URI path, query, and
+ * ACCEPT option. A response is fresh for its Max-Age, or the default of 60
+ * seconds of CoAP, and a hit is answered with the cached payload, i.e., the
+ * bytes encoded once by the resource, and the remaining Max-Age.
+ * <p>
+ * The cache holds at most a fixed number of entries. It evicts with the
+ * CLOCK policy on a lock-free queue: an entry that was hit since it was last
+ * visited gets a second chance, expired and unused entries are removed.
+ * <p>
+ * Requests with Observe, Block2, or ETags, and responses with Observe or
+ * Block2 are not cached.
+ */
+public class ResponseCache {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final long DEFAULT_MAX_AGE = 60; // [s]
+	public static final int MAX_PAYLOAD = 64 * 1024;
+
+	private final int capacity;
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicInteger queued = new AtomicInteger();
+
+	public ResponseCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ResponseCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new ConcurrentHashMap<String, Entry>(capacity);
+	}
+
+	/**
+	 * Returns the key of a request or null if the request cannot be answered
+	 * from the cache.
+	 */
+	public static String getKey(Request request) {
+		OptionSet options = request.getOptions();
+		if (request.getCode() != Code.GET || options.hasObserve() || options.hasBlock2() || options.getETagCount() > 0)
+			return null;
+		int accept = options.hasAccept() ? options.getAccept() : MediaTypeRegistry.UNDEFINED;
+		return options.getUriPathString() + "?" + options.getUriQueryString() + "#" + accept;
+	}
+
+	/**
+	 * Returns a new response from the fresh entry of the key or null.
+	 */
+	public Response get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		long remaining = entry.expires - System.nanoTime();
+		if (remaining <= 0) {
+			entries.remove(key, entry);
+			return null;
+		}
+		entry.referenced = true;
+		
+		Response response = new Response(entry.code);
+		response.setPayload(entry.payload);
+		if (entry.contentFormat != MediaTypeRegistry.UNDEFINED)
+			response.getOptions().setContentFormat(entry.contentFormat);
+		for (byte[] etag : entry.etags)
+			response.getOptions().addETag(etag);
+		// round up, the entry expires before the client's copy
+		response.getOptions().setMaxAge((remaining + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+		return response;
+	}
+
+	/**
+	 * Caches the response if it is cacheable.
+	 * 
+	 * @param key the key of the request, see {@link #getKey(Request)}
+	 * @param response the response to the request
+	 */
+	public void put(String key, Response response) {
+		OptionSet options = response.getOptions();
+		if (key == null || response.getCode() != ResponseCode.CONTENT || options.hasObserve() || options.hasBlock2()
+				|| response.getPayloadSize() > MAX_PAYLOAD)
+			return;
+		long maxAge = options.hasMaxAge() ? options.getMaxAge() : DEFAULT_MAX_AGE;
+		if (maxAge <= 0)
+			return;
+		
+		Entry entry = new Entry(key, response, System.nanoTime() + TimeUnit.SECONDS.toNanos(maxAge));
+		entries.put(key, entry);
+		clock.offer(entry);
+		queued.incrementAndGet();
+		evict();
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		// poll rather than clear the queue, so that the count stays in step with concurrent puts
+		while (clock.poll() != null)
+			queued.decrementAndGet();
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/*
+	 * Advances the clock hand until the cache is within its capacity. The
+	 * queue may also hold entries that were replaced or expired, which are
+	 * dropped when the hand passes them.
+	 */
+	private void evict() {
+		long now = System.nanoTime();
+		while (entries.size() > capacity || queued.get() > 2 * capacity) {
+			Entry entry = clock.poll();
+			if (entry == null)
+				return;
+			if (entry.referenced && entry.expires - now > 0 && entries.get(entry.key) == entry) {
+				entry.referenced = false;
+				clock.offer(entry);
+			} else {
+				queued.decrementAndGet();
+				entries.remove(entry.key, entry);
+			}
+		}
+	}
+
+	/**
+	 * A cached response.
+	 */
+	private static class Entry {
+
+		private final String key;
+		private final ResponseCode code;
+		private final byte[] payload;
+		private final int contentFormat;
+		private final List<byte[]> etags;
+		private final long expires;
+		private volatile boolean referenced;
+
+		private Entry(String key, Response response, long expires) {
+			OptionSet options = response.getOptions();
+			this.key = key;
+			this.code = response.getCode();
+			this.payload = response.getPayload();
+			this.contentFormat = options.hasContentFormat() ? options.getContentFormat() : MediaTypeRegistry.UNDEFINED;
+			this.etags = new ArrayList<byte[]>(options.getETags());
+			this.expires = expires;
+		}
+	}
+}
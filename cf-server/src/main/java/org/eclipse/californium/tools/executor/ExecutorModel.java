@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.executor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The executor models the server can run its protocol stages and resources
+ * on. Every model is wrapped in an {@link InstrumentedExecutor}, so that the
+ * models can be compared with the same benchmark.
+ */
+public enum ExecutorModel {
+
+	/** A scheduled pool of 4 threads, the classic default */
+	SCHEDULED(4),
+	/** A fixed pool with one thread per core and a shared queue */
+	FIXED(0),
+	/** A work-stealing {@link ForkJoinPool} in FIFO mode, one thread per core */
+	FORKJOIN(0),
+	/** A new virtual thread per task, requires Java 21 */
+	VIRTUAL(0);
+
+	private final int defaultThreads;
+
+	private ExecutorModel(int defaultThreads) {
+		this.defaultThreads = defaultThreads;
+	}
+
+	/**
+	 * Creates an executor of this model.
+	 * 
+	 * @param threads the number of threads, or 0 for the default of the
+	 *            model; ignored for virtual threads
+	 * @return the instrumented executor
+	 * @throws UnsupportedOperationException if the JVM does not support the
+	 *             model
+	 */
+	public InstrumentedExecutor create(int threads) {
+		if (threads <= 0)
+			threads = defaultThreads > 0 ? defaultThreads : Runtime.getRuntime().availableProcessors();
+		String name = name().toLowerCase();
+
+		if (this == SCHEDULED) {
+			ScheduledExecutorService pool = Executors.newScheduledThreadPool(threads);
+			return new InstrumentedExecutor(name + "(" + threads + ")", pool, pool);
+		}
+
+		// the timers of the stack are light, one thread is enough; it is no
+		// daemon, so that it keeps the server alive as the old pool did
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		switch (this) {
+		case FIXED:
+			return new InstrumentedExecutor(name + "(" + threads + ")", Executors.newFixedThreadPool(threads), timer);
+		case FORKJOIN:
+			ForkJoinPool pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+			return new InstrumentedExecutor(name + "(" + threads + ")", pool, timer);
+		default:
+			return new InstrumentedExecutor(name, newVirtualThreadPerTaskExecutor(timer), timer);
+		}
+	}
+
+	/*
+	 * Looked up reflectively, so that the server still builds and runs on
+	 * older JVMs.
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor(ScheduledExecutorService timer) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			timer.shutdown();
+			throw new UnsupportedOperationException("Virtual threads require Java 21", e);
+		}
+	}
+
+	/**
+	 * Returns the model of the name, ignoring case.
+	 * 
+	 * @throws IllegalArgumentException if there is no such model
+	 */
+	public static ExecutorModel parse(String name) {
+		return valueOf(name.toUpperCase());
+	}
+}
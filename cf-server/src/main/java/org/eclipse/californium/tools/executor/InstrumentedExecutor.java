@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.executor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.tools.metrics.Histogram;
+
+/**
+ * Adapts an executor of any model to the {@link ScheduledExecutorService} the
+ * {@link org.eclipse.californium.core.CoapServer} requires and measures it.
+ * Tasks passed to {@link #execute(Runnable)} run on the executor and are
+ * instrumented with the queue depth, the time they waited for a thread, and
+ * the time they ran. Scheduled tasks, i.e., the timers of the protocol
+ * stack, run on a separate scheduler, which may be the executor itself.
+ */
+public class InstrumentedExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+	private final String name;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService scheduler;
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger maxQueued = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final Histogram wait = new Histogram();
+	private final Histogram run = new Histogram();
+	
+	// guarded by this, the start of the report interval
+	private Histogram.Snapshot lastWait = wait.snapshot();
+	private Histogram.Snapshot lastRun = run.snapshot();
+	private long lastRejected;
+
+	/**
+	 * Creates an instrumented executor.
+	 * 
+	 * @param name the name of the model for reports
+	 * @param executor the executor for the tasks
+	 * @param scheduler the scheduler for delayed and periodic tasks
+	 */
+	public InstrumentedExecutor(String name, ExecutorService executor, ScheduledExecutorService scheduler) {
+		this.name = name;
+		this.executor = executor;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		int depth = queued.incrementAndGet();
+		int current;
+		while (depth > (current = maxQueued.get()) && !maxQueued.compareAndSet(current, depth));
+		try {
+			executor.execute(new Task(command));
+		} catch (RejectedExecutionException e) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return scheduler.schedule(command, delay, unit);
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		return scheduler.schedule(callable, delay, unit);
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		return scheduler.scheduleAtFixedRate(command, initialDelay, period, unit);
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		return scheduler.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+		if (scheduler != executor)
+			scheduler.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		// the executors may return immutable lists, e.g., List.of() for virtual threads
+		List<Runnable> pending = new ArrayList<Runnable>(executor.shutdownNow());
+		if (scheduler != executor)
+			pending.addAll(scheduler.shutdownNow());
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return executor.isTerminated() && scheduler.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return executor.awaitTermination(timeout, unit)
+				&& scheduler.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of tasks that wait for a thread or run.
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueued.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the cumulative histogram of the time from submission to start.
+	 */
+	public Histogram getWaitLatency() {
+		return wait;
+	}
+
+	/**
+	 * Returns the cumulative histogram of the run time of the tasks.
+	 */
+	public Histogram getRunLatency() {
+		return run;
+	}
+
+	/**
+	 * Returns a report of the statistics since the last report and starts a
+	 * new interval.
+	 */
+	public synchronized String report() {
+		Histogram.Snapshot waitNow = wait.snapshot();
+		Histogram.Snapshot runNow = run.snapshot();
+		Histogram.Snapshot runInterval = runNow.minus(lastRun);
+		long rejectedNow = rejected.get();
+		String report = String.format("[%s] tasks=%d, queued=%d (max %d), rejected=%d, wait %s, run %s",
+				name, runInterval.getCount(), queued.get(), maxQueued.getAndSet(queued.get()), rejectedNow - lastRejected,
+				waitNow.minus(lastWait), runInterval);
+		lastWait = waitNow;
+		lastRun = runNow;
+		lastRejected = rejectedNow;
+		return report;
+	}
+
+	/**
+	 * A task that records its waiting and run time.
+	 */
+	private class Task implements Runnable {
+
+		private final Runnable command;
+		private final long submitted = System.nanoTime();
+
+		private Task(Runnable command) {
+			this.command = command;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			wait.record(start - submitted);
+			try {
+				command.run();
+			} finally {
+				queued.decrementAndGet();
+				run.record(System.nanoTime() - start);
+			}
+		}
+	}
+}
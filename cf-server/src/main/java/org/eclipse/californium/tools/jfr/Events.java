@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.jfr;
+
+import jdk.jfr.EventType;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+
+/**
+ * The JDK Flight Recorder events of the server. Start the server with, e.g.,
+ * <code>-XX:StartFlightRecording=filename=server.jfr</code> to correlate slow
+ * handlers with GC, safepoints and lock contention.
+ * <p>
+ * The {@link org.eclipse.californium.tools.resources.InstrumentedResource}
+ * records the handlers of its subclasses.
+ * 
+ * If the event type is disabled, neither an event nor a timestamp is created.
+ */
+public final class Events {
+
+	public static final String CATEGORY = "Californium";
+	public static final String SUBCATEGORY = "Server";
+
+	public static final EventType HANDLER = EventType.getEventType(HandlerEvent.class);
+
+	private Events() { }
+
+	/**
+	 * Begins a new handler event if the event type is enabled.
+	 * 
+	 * @return the event or null if disabled
+	 */
+	public static HandlerEvent beginHandler() {
+		if (!HANDLER.isEnabled())
+			return null;
+		HandlerEvent event = new HandlerEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends and commits the specified handler event.
+	 * 
+	 * @param event the event returned by {@link #beginHandler()} or null
+	 * @param resource the URI of the handling resource
+	 * @param exchange the handled exchange
+	 */
+	public static void commitHandler(HandlerEvent event, String resource, Exchange exchange) {
+		if (event == null)
+			return;
+		event.end();
+		if (event.shouldCommit()) {
+			Request request = exchange.getRequest();
+			Response response = exchange.getResponse();
+			event.mid = request.getMID();
+			event.uri = request.getURI();
+			event.method = String.valueOf(request.getCode());
+			event.resource = resource;
+			event.code = response == null ? null : String.valueOf(response.getCode());
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The execution of a resource handler. Use {@link Events#beginHandler()} and
+ * {@link Events#commitHandler(HandlerEvent, String, org.eclipse.californium.core.network.Exchange)}
+ * to record it.
+ */
+@Name("org.eclipse.californium.tools.Handler")
+@Label("CoAP Resource Handler")
+@Category({Events.CATEGORY, Events.SUBCATEGORY})
+@Description("The execution of a resource handler")
+public class HandlerEvent extends Event {
+
+	@Label("MID")
+	public int mid;
+
+	@Label("URI")
+	public String uri;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Resource")
+	public String resource;
+
+	@Label("Response Code")
+	@Description("Empty if the handler has not responded yet, e.g., with a separate response")
+	public String code;
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A minimal CBOR encoder (RFC 7049) for the metrics: maps of definite
+ * length, text strings, integers and doubles.
+ */
+class CborWriter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+	CborWriter map(int size) {
+		head(5, size);
+		return this;
+	}
+
+	CborWriter string(String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		head(3, bytes.length);
+		out.write(bytes, 0, bytes.length);
+		return this;
+	}
+
+	CborWriter number(long value) {
+		if (value >= 0)
+			head(0, value);
+		else
+			head(1, -1 - value);
+		return this;
+	}
+
+	CborWriter number(double value) {
+		out.write(0xFB);
+		long bits = Double.doubleToLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			out.write((int) (bits >>> shift));
+		return this;
+	}
+
+	byte[] toByteArray() {
+		return out.toByteArray();
+	}
+
+	private void head(int major, long value) {
+		int type = major << 5;
+		if (value < 24) {
+			out.write(type | (int) value);
+		} else if (value < 0x100) {
+			out.write(type | 24);
+			out.write((int) value);
+		} else if (value < 0x10000) {
+			out.write(type | 25);
+			out.write((int) (value >>> 8));
+			out.write((int) value);
+		} else if (value < 0x100000000L) {
+			out.write(type | 26);
+			for (int shift = 24; shift >= 0; shift -= 8)
+				out.write((int) (value >>> shift));
+		} else {
+			out.write(type | 27);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				out.write((int) (value >>> shift));
+		}
+	}
+}
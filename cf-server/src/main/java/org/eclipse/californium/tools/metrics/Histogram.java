@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cumulative histogram of latencies with power-of-two buckets in
+ * microseconds: bucket i holds the values below 2^i us. Recording is a few
+ * uncontended {@link LongAdder} increments, so it can be used on every
+ * request; quantiles are the upper bound of their bucket and thus accurate to
+ * a factor of two.
+ */
+public class Histogram {
+
+	public static final int BUCKETS = 32;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+		sum.add(micros);
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros));
+	}
+
+	/**
+	 * Returns a consistent enough copy of the counts.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = buckets[i].sum();
+		return new Snapshot(counts, sum.sum(), max.get());
+	}
+
+	/**
+	 * Returns the exclusive upper bound of the bucket in microseconds.
+	 */
+	public static long getUpperBound(int bucket) {
+		return 1L << bucket;
+	}
+
+	/**
+	 * The counts of a histogram at one point in time.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long sum, long max) {
+			long count = 0;
+			for (long c : counts)
+				count += c;
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Returns the counts recorded since the earlier snapshot. The maximum
+		 * is approximated by the upper bound of the highest bucket.
+		 */
+		public Snapshot minus(Snapshot earlier) {
+			long[] delta = new long[BUCKETS];
+			int highest = -1;
+			for (int i = 0; i < BUCKETS; i++) {
+				delta[i] = counts[i] - earlier.counts[i];
+				if (delta[i] > 0)
+					highest = i;
+			}
+			long max = highest < 0 ? 0 : Math.min(this.max, getUpperBound(highest) - 1);
+			return new Snapshot(delta, sum - earlier.sum, max);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the count of the bucket.
+		 */
+		public long getCount(int bucket) {
+			return counts[bucket];
+		}
+
+		/**
+		 * Returns the sum in microseconds.
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * Returns the maximum in microseconds.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket of the quantile in
+		 * microseconds.
+		 * 
+		 * @param q the quantile in [0, 1]
+		 */
+		public long getQuantile(double q) {
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(q * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(max, getUpperBound(i) - 1);
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("p50=%dus p99=%dus max=%dus", getQuantile(0.5), getQuantile(0.99), getMax());
+		}
+	}
+}
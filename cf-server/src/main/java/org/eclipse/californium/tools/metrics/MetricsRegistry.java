@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Collects the metrics of the server: per-resource counters and handler
+ * latencies, and named gauges and histograms, e.g., of the executor. The
+ * registry renders them in the Prometheus text format, as JSON, or as CBOR
+ * with the same structure as the JSON.
+ * <p>
+ * Resources use the {@link #getDefault() default registry}, so that they do
+ * not need to pass it around.
+ */
+public class MetricsRegistry {
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	private final ConcurrentSkipListMap<String, ResourceMetrics> resources = new ConcurrentSkipListMap<String, ResourceMetrics>();
+	private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+	private final ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the metrics of the resource, created on first use.
+	 * 
+	 * @param uri the URI of the resource
+	 */
+	public ResourceMetrics getResourceMetrics(String uri) {
+		ResourceMetrics metrics = resources.get(uri);
+		if (metrics == null) {
+			ResourceMetrics created = new ResourceMetrics(uri);
+			metrics = resources.putIfAbsent(uri, created);
+			if (metrics == null)
+				metrics = created;
+		}
+		return metrics;
+	}
+
+	/**
+	 * Registers a gauge, e.g., a queue depth.
+	 * 
+	 * @param name the metric name in snake case
+	 */
+	public void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Registers a histogram of latencies.
+	 * 
+	 * @param name the metric name in snake case, without unit
+	 */
+	public void registerHistogram(String name, Histogram histogram) {
+		histograms.put(name, histogram);
+	}
+
+	/**
+	 * Renders the metrics in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		StringBuilder buffer = new StringBuilder(4096);
+		buffer.append("# TYPE coap_requests_total counter\n");
+		for (ResourceMetrics m : resources.values())
+			sample(buffer, "coap_requests_total", label(m), m.getRequests());
+		buffer.append("# TYPE coap_responses_total counter\n");
+		for (ResourceMetrics m : resources.values()) {
+			String label = label(m);
+			sample(buffer, "coap_responses_total", label + ",class=\"2xx\"", m.getSuccess());
+			sample(buffer, "coap_responses_total", label + ",class=\"4xx\"", m.getClientErrors());
+			sample(buffer, "coap_responses_total", label + ",class=\"5xx\"", m.getServerErrors());
+			sample(buffer, "coap_responses_total", label + ",class=\"deferred\"", m.getDeferred());
+			sample(buffer, "coap_responses_total", label + ",class=\"exception\"", m.getExceptions());
+		}
+		buffer.append("# TYPE coap_pending_responses gauge\n");
+		for (ResourceMetrics m : resources.values())
+			sample(buffer, "coap_pending_responses", label(m), m.getPending());
+		buffer.append("# TYPE coap_cache_lookups_total counter\n");
+		for (ResourceMetrics m : resources.values()) {
+			String label = label(m);
+			sample(buffer, "coap_cache_lookups_total", label + ",result=\"hit\"", m.getCacheHits());
+			sample(buffer, "coap_cache_lookups_total", label + ",result=\"miss\"", m.getCacheMisses());
+		}
+		buffer.append("# TYPE coap_handler_seconds histogram\n");
+		for (ResourceMetrics m : resources.values())
+			histogram(buffer, "coap_handler_seconds", label(m), m.getLatency().snapshot());
+		buffer.append("# TYPE coap_completion_seconds histogram\n");
+		for (ResourceMetrics m : resources.values())
+			histogram(buffer, "coap_completion_seconds", label(m), m.getCompletion().snapshot());
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			buffer.append("# TYPE ").append(e.getKey()).append(" gauge\n");
+			sample(buffer, e.getKey(), null, e.getValue().getValue());
+		}
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			String name = e.getKey() + "_seconds";
+			buffer.append("# TYPE ").append(name).append(" histogram\n");
+			histogram(buffer, name, null, e.getValue().snapshot());
+		}
+		return buffer.toString();
+	}
+
+	private static String label(ResourceMetrics m) {
+		return "resource=\"" + m.getResource().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static void sample(StringBuilder buffer, String name, String labels, Object value) {
+		buffer.append(name);
+		if (labels != null)
+			buffer.append('{').append(labels).append('}');
+		buffer.append(' ').append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder buffer, String name, String labels, Histogram.Snapshot snapshot) {
+		String prefix = labels == null ? "" : labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < Histogram.BUCKETS; i++) {
+			cumulative += snapshot.getCount(i);
+			sample(buffer, name + "_bucket", prefix + "le=\"" + seconds(Histogram.getUpperBound(i)) + "\"", cumulative);
+		}
+		sample(buffer, name + "_bucket", prefix + "le=\"+Inf\"", snapshot.getCount());
+		sample(buffer, name + "_sum", labels, seconds(snapshot.getSum()));
+		sample(buffer, name + "_count", labels, snapshot.getCount());
+	}
+
+	private static String seconds(long micros) {
+		return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+	}
+
+	/**
+	 * Renders the metrics as compact JSON.
+	 */
+	public String toJson() {
+		StringBuilder buffer = new StringBuilder(1024);
+		buffer.append("{\"resources\":{");
+		boolean first = true;
+		for (ResourceMetrics m : resources.values()) {
+			if (!first)
+				buffer.append(',');
+			first = false;
+			buffer.append('"').append(m.getResource().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":{")
+				.append("\"requests\":").append(m.getRequests())
+				.append(",\"2xx\":").append(m.getSuccess())
+				.append(",\"4xx\":").append(m.getClientErrors())
+				.append(",\"5xx\":").append(m.getServerErrors())
+				.append(",\"deferred\":").append(m.getDeferred())
+				.append(",\"exceptions\":").append(m.getExceptions())
+				.append(",\"cache_hits\":").append(m.getCacheHits())
+				.append(",\"cache_misses\":").append(m.getCacheMisses())
+				.append(",\"pending\":").append(m.getPending())
+				.append(",\"latency\":");
+			json(buffer, m.getLatency().snapshot());
+			buffer.append(",\"completion\":");
+			json(buffer, m.getCompletion().snapshot());
+			buffer.append('}');
+		}
+		buffer.append("},\"gauges\":{");
+		first = true;
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			if (!first)
+				buffer.append(',');
+			first = false;
+			buffer.append('"').append(e.getKey()).append("\":").append(e.getValue().getValue());
+		}
+		buffer.append("},\"histograms\":{");
+		first = true;
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			if (!first)
+				buffer.append(',');
+			first = false;
+			buffer.append('"').append(e.getKey()).append("\":");
+			json(buffer, e.getValue().snapshot());
+		}
+		return buffer.append("}}").toString();
+	}
+
+	private static void json(StringBuilder buffer, Histogram.Snapshot s) {
+		buffer.append("{\"count\":").append(s.getCount())
+			.append(",\"mean_us\":").append(String.format(Locale.ROOT, "%.1f", s.getMean()))
+			.append(",\"p50_us\":").append(s.getQuantile(0.5))
+			.append(",\"p90_us\":").append(s.getQuantile(0.9))
+			.append(",\"p99_us\":").append(s.getQuantile(0.99))
+			.append(",\"max_us\":").append(s.getMax()).append('}');
+	}
+
+	/**
+	 * Renders the metrics as CBOR with the structure of {@link #toJson()}.
+	 */
+	public byte[] toCbor() {
+		CborWriter cbor = new CborWriter();
+		// the snapshots of the maps keep the sizes and entries consistent
+		Map<String, ResourceMetrics> resources = new TreeMap<String, ResourceMetrics>(this.resources);
+		Map<String, Gauge> gauges = new TreeMap<String, Gauge>(this.gauges);
+		Map<String, Histogram> histograms = new TreeMap<String, Histogram>(this.histograms);
+
+		cbor.map(3).string("resources").map(resources.size());
+		for (ResourceMetrics m : resources.values()) {
+			cbor.string(m.getResource()).map(11)
+				.string("requests").number(m.getRequests())
+				.string("2xx").number(m.getSuccess())
+				.string("4xx").number(m.getClientErrors())
+				.string("5xx").number(m.getServerErrors())
+				.string("deferred").number(m.getDeferred())
+				.string("exceptions").number(m.getExceptions())
+				.string("cache_hits").number(m.getCacheHits())
+				.string("cache_misses").number(m.getCacheMisses())
+				.string("pending").number(m.getPending())
+				.string("latency");
+			cbor(cbor, m.getLatency().snapshot());
+			cbor.string("completion");
+			cbor(cbor, m.getCompletion().snapshot());
+		}
+		cbor.string("gauges").map(gauges.size());
+		for (Map.Entry<String, Gauge> e : gauges.entrySet())
+			cbor.string(e.getKey()).number(e.getValue().getValue());
+		cbor.string("histograms").map(histograms.size());
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			cbor.string(e.getKey());
+			cbor(cbor, e.getValue().snapshot());
+		}
+		return cbor.toByteArray();
+	}
+
+	private static void cbor(CborWriter cbor, Histogram.Snapshot s) {
+		cbor.map(6)
+			.string("count").number(s.getCount())
+			.string("mean_us").number(s.getMean())
+			.string("p50_us").number(s.getQuantile(0.5))
+			.string("p90_us").number(s.getQuantile(0.9))
+			.string("p99_us").number(s.getQuantile(0.99))
+			.string("max_us").number(s.getMax());
+	}
+
+	/**
+	 * A value that is read when the metrics are rendered.
+	 */
+	public interface Gauge {
+		long getValue();
+	}
+}
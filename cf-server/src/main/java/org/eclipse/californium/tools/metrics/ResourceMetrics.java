@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * The counters and the handler latency of one resource.
+ */
+public class ResourceMetrics {
+
+	private final String resource;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder success = new LongAdder();
+	private final LongAdder clientErrors = new LongAdder();
+	private final LongAdder serverErrors = new LongAdder();
+	private final LongAdder deferred = new LongAdder();
+	private final LongAdder exceptions = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final Histogram latency = new Histogram();
+	private final Histogram completion = new Histogram();
+
+	public ResourceMetrics(String resource) {
+		this.resource = resource;
+	}
+
+	/**
+	 * Records a handled request.
+	 * 
+	 * @param response the response or null if the handler has not responded
+	 *            yet, e.g., with a separate response
+	 * @param nanos the run time of the handler
+	 */
+	public void record(Response response, long nanos) {
+		requests.increment();
+		latency.record(nanos);
+		if (response == null) {
+			deferred.increment();
+			return;
+		}
+		int codeClass = response.getCode().value >> 5;
+		if (codeClass == 2)
+			success.increment();
+		else if (codeClass == 4)
+			clientErrors.increment();
+		else
+			serverErrors.increment();
+	}
+
+	/**
+	 * Records a deferred response, e.g., a separate response, once it has
+	 * been sent.
+	 * 
+	 * @param response the response
+	 * @param nanos the time from the reception of the request to the response
+	 */
+	public void recordCompletion(Response response, long nanos) {
+		completed.increment();
+		completion.record(nanos);
+		int codeClass = response.getCode().value >> 5;
+		if (codeClass == 2)
+			success.increment();
+		else if (codeClass == 4)
+			clientErrors.increment();
+		else
+			serverErrors.increment();
+	}
+
+	/**
+	 * Records a handler that has thrown an exception.
+	 */
+	public void recordException(long nanos) {
+		requests.increment();
+		exceptions.increment();
+		latency.record(nanos);
+	}
+
+	/**
+	 * Records a lookup in the response cache.
+	 */
+	public void recordCache(boolean hit) {
+		if (hit)
+			cacheHits.increment();
+		else
+			cacheMisses.increment();
+	}
+
+	public String getResource() {
+		return resource;
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getSuccess() {
+		return success.sum();
+	}
+
+	public long getClientErrors() {
+		return clientErrors.sum();
+	}
+
+	public long getServerErrors() {
+		return serverErrors.sum();
+	}
+
+	public long getDeferred() {
+		return deferred.sum();
+	}
+
+	/**
+	 * Returns the number of deferred responses that have been sent.
+	 */
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	/**
+	 * Returns the number of deferred responses that are still pending.
+	 */
+	public long getPending() {
+		return Math.max(0, deferred.sum() - completed.sum());
+	}
+
+	public long getExceptions() {
+		return exceptions.sum();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Returns the histogram of the time to the deferred responses.
+	 */
+	public Histogram getCompletion() {
+		return completion;
+	}
+}
@@ -0,0 +1,304 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.network;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.MessageDeliverer;
+import org.eclipse.californium.tools.metrics.Histogram;
+
+/**
+ * Admission control in front of the resources. The protocol stack only
+ * decodes and matches the requests on the executor of the server, and this
+ * deliverer hands them to a fixed pool of handler threads with a bounded
+ * queue. A request is refused early with 5.03 and a Max-Age backoff hint if
+ * <ul>
+ * <li>its source has exceeded its rate, as per-source token bucket,</li>
+ * <li>the queue is full, or</li>
+ * <li>it has waited in the queue longer than {@link #MAX_QUEUE_DELAY}, since
+ * the client has retransmitted or given up by then.</li>
+ * </ul>
+ * The server thus answers what it can in time and sheds the rest cheaply,
+ * instead of queueing until every client sees latencies in seconds.
+ * <p>
+ * At most {@link #MAX_SOURCES} sources have a bucket of their own. The
+ * buckets of idle sources are purged every {@link #PURGE_INTERVAL} seconds
+ * by a timer, and while the table is full, all new sources share a single
+ * bucket, so that a flood of (spoofed) addresses can neither grow the table
+ * nor take the rate of the known sources.
+ */
+public class AdmissionController implements MessageDeliverer {
+
+	public static final long MAX_QUEUE_DELAY = 1000; // [ms]
+	public static final int MAX_SOURCES = 65536;
+	public static final long PURGE_INTERVAL = 10; // [s]
+
+	private final MessageDeliverer deliverer;
+	private final ThreadPoolExecutor handlers;
+	private final int threads;
+	private final double rate;
+	private final double burst;
+	private final ConcurrentHashMap<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<InetAddress, TokenBucket>();
+	// the number of buckets, reserved before they are added
+	private final AtomicInteger sources = new AtomicInteger();
+	// shared by the sources that find the table full
+	private final TokenBucket overflow;
+	private final ScheduledExecutorService purger;
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder queueFull = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder overflowed = new LongAdder();
+	private final Histogram wait = new Histogram();
+	// moving average of the handler run time, updated without synchronization
+	private volatile long serviceTime;
+
+	/**
+	 * Creates an admission controller.
+	 * 
+	 * @param deliverer the deliverer of the server that dispatches to the
+	 *            resources
+	 * @param threads the number of handler threads
+	 * @param queue the capacity of the queue, or 0 for unbounded
+	 * @param rate the requests per second per source address, or 0 for
+	 *            unlimited
+	 * @param burst the number of requests a source may send at once
+	 */
+	public AdmissionController(MessageDeliverer deliverer, int threads, int queue, double rate, int burst) {
+		this.deliverer = deliverer;
+		this.threads = threads;
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.handlers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				queue > 0 ? new ArrayBlockingQueue<Runnable>(queue) : new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger index = new AtomicInteger();
+
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Handler#" + index.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.overflow = new TokenBucket(System.nanoTime());
+		if (rate > 0) {
+			this.purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AdmissionPurge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.purger.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					purge(System.nanoTime());
+				}
+			}, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.SECONDS);
+		} else {
+			this.purger = null;
+		}
+	}
+
+	@Override
+	public void deliverRequest(final Exchange exchange) {
+		long now = System.nanoTime();
+		if (rate > 0) {
+			InetAddress source = exchange.getRequest().getSource();
+			TokenBucket bucket = buckets.get(source);
+			if (bucket == null)
+				bucket = getNewBucket(source, now);
+			long backoff = bucket.acquire(now);
+			if (backoff > 0) {
+				rateLimited.increment();
+				refuse(exchange, backoff);
+				return;
+			}
+		}
+		
+		final long submitted = now;
+		try {
+			handlers.execute(new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					wait.record(start - submitted);
+					if (start - submitted > TimeUnit.MILLISECONDS.toNanos(MAX_QUEUE_DELAY)) {
+						expired.increment();
+						refuse(exchange, getBackoff());
+						return;
+					}
+					try {
+						deliverer.deliverRequest(exchange);
+					} finally {
+						long time = System.nanoTime() - start;
+						serviceTime += (time - serviceTime) >> 4;
+					}
+				}
+			});
+			admitted.increment();
+		} catch (RejectedExecutionException e) {
+			queueFull.increment();
+			refuse(exchange, getBackoff());
+		}
+	}
+
+	@Override
+	public void deliverResponse(Exchange exchange, Response response) {
+		deliverer.deliverResponse(exchange, response);
+	}
+
+	public void shutdown() {
+		handlers.shutdown();
+		if (purger != null)
+			purger.shutdown();
+	}
+
+	/*
+	 * Adds a bucket for the source, or returns the shared overflow bucket if
+	 * the table is full.
+	 */
+	private TokenBucket getNewBucket(InetAddress source, long now) {
+		if (sources.incrementAndGet() > MAX_SOURCES) {
+			sources.decrementAndGet();
+			overflowed.increment();
+			return overflow;
+		}
+		TokenBucket bucket = new TokenBucket(now);
+		TokenBucket previous = buckets.putIfAbsent(source, bucket);
+		if (previous != null) {
+			sources.decrementAndGet();
+			return previous;
+		}
+		return bucket;
+	}
+
+	/*
+	 * Returns the time to work off the queue in ns.
+	 */
+	private long getBackoff() {
+		return handlers.getQueue().size() * serviceTime / threads;
+	}
+
+	private static void refuse(Exchange exchange, long backoff) {
+		Response response = new Response(ResponseCode.SERVICE_UNAVAILABLE);
+		// Max-Age has a resolution of seconds, round up
+		response.getOptions().setMaxAge(Math.max(1, (backoff + 999999999L) / 1000000000L));
+		exchange.sendResponse(response);
+	}
+
+	/*
+	 * Removes the buckets of the sources that have been idle long enough to
+	 * fill up their bucket again. Runs on the timer, not on request threads.
+	 */
+	private void purge(long now) {
+		Iterator<TokenBucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isFull(now)) {
+				it.remove();
+				sources.decrementAndGet();
+			}
+		}
+	}
+
+	public long getAdmitted() {
+		return admitted.sum();
+	}
+
+	public long getRateLimited() {
+		return rateLimited.sum();
+	}
+
+	public long getQueueFull() {
+		return queueFull.sum();
+	}
+
+	/**
+	 * Returns the number of requests that were refused because they waited
+	 * too long in the queue.
+	 */
+	public long getExpired() {
+		return expired.sum();
+	}
+
+	/**
+	 * Returns the number of requests from new sources that found the table
+	 * full and were charged to the shared overflow bucket.
+	 */
+	public long getOverflowed() {
+		return overflowed.sum();
+	}
+
+	/**
+	 * Returns the number of sources with a bucket of their own.
+	 */
+	public int getSources() {
+		return sources.get();
+	}
+
+	public int getQueueDepth() {
+		return handlers.getQueue().size();
+	}
+
+	/**
+	 * Returns the histogram of the time the requests waited in the queue.
+	 */
+	public Histogram getWaitLatency() {
+		return wait;
+	}
+
+	/**
+	 * The tokens of one source, refilled at the rate up to the burst.
+	 */
+	private class TokenBucket {
+
+		private double tokens = burst;
+		private long last;
+
+		private TokenBucket(long now) {
+			this.last = now;
+		}
+
+		/*
+		 * Takes a token and returns 0, or returns the time until the next
+		 * token in ns.
+		 */
+		private synchronized long acquire(long now) {
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			last = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			return (long) ((1 - tokens) * 1e9 / rate);
+		}
+
+		private synchronized boolean isFull(long now) {
+			return tokens + (now - last) * rate / 1e9 >= burst;
+		}
+	}
+}
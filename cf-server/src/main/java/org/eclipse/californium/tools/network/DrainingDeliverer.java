@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.network;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.core.server.MessageDeliverer;
+
+/**
+ * A deliverer that can drain the server before it stops. It delegates to
+ * the deliverer of the server and keeps track of the exchanges that are
+ * still in flight: requests without response, e.g., with a separate
+ * response that is still being computed, and confirmable responses and
+ * notifications that are not yet acknowledged.
+ * <p>
+ * While draining, new requests are refused with 5.03 and a Max-Age of
+ * {@link #RETRY_AFTER} seconds, so that clients back off instead of timing
+ * out, and {@link #drain(long, Exchange)} waits until the exchanges in
+ * flight have completed or the deadline has passed.
+ * <p>
+ * Requests with a piggy-backed response leave the tracking right after they
+ * are delivered. The other exchanges are swept every {@link #SWEEP_INTERVAL}
+ * seconds by a timer, so that the bookkeeping per request stays constant
+ * however many exchanges are in flight.
+ */
+public class DrainingDeliverer implements MessageDeliverer {
+
+	public static final long RETRY_AFTER = 5; // [s]
+	public static final long SWEEP_INTERVAL = 1; // [s]
+
+	// unacknowledged responses older than this have timed out (MAX_TRANSMIT_WAIT)
+	private static final long ACK_WINDOW = TimeUnit.SECONDS.toNanos(93);
+	private static final long POLL_INTERVAL = 10; // [ms]
+
+	private final MessageDeliverer deliverer;
+	private final Set<Exchange> inFlight = ConcurrentHashMap.newKeySet();
+	private final Map<String, Long> unacknowledged = new ConcurrentHashMap<String, Long>();
+	private final Set<Endpoint> endpoints = ConcurrentHashMap.newKeySet();
+	private final MessageInterceptor interceptor = new AcknowledgementInterceptor();
+	private final LongAdder refused = new LongAdder();
+	private final ScheduledExecutorService sweeper;
+
+	private volatile boolean draining;
+
+	public DrainingDeliverer(MessageDeliverer deliverer) {
+		this.deliverer = deliverer;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DrainSweep");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep(System.nanoTime());
+			}
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void deliverRequest(Exchange exchange) {
+		if (draining) {
+			refused.increment();
+			Response response = new Response(ResponseCode.SERVICE_UNAVAILABLE);
+			response.getOptions().setMaxAge(RETRY_AFTER);
+			exchange.sendResponse(response);
+			return;
+		}
+		
+		// the interceptor only sees the endpoints that have received requests
+		Endpoint endpoint = exchange.getEndpoint();
+		if (endpoint != null && !endpoints.contains(endpoint) && endpoints.add(endpoint))
+			endpoint.addInterceptor(interceptor);
+		
+		inFlight.add(exchange);
+		deliverer.deliverRequest(exchange);
+		if (exchange.getResponse() != null)
+			inFlight.remove(exchange);
+	}
+
+	@Override
+	public void deliverResponse(Exchange exchange, Response response) {
+		deliverer.deliverResponse(exchange, response);
+	}
+
+	/**
+	 * Refuses new requests and waits until the exchanges in flight have
+	 * completed, but not longer than the timeout. The deliverer keeps
+	 * refusing requests until {@link #resume()} is called.
+	 * 
+	 * @param timeout the deadline in ms
+	 * @param self the exchange that requested the drain, which is not waited
+	 *            for, or null
+	 * @return the number of drained and aborted exchanges
+	 */
+	public Result drain(long timeout, Exchange self) {
+		draining = true;
+		if (self != null)
+			inFlight.remove(self);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		int initial = sweep(System.nanoTime());
+		int remaining = initial;
+		while (remaining > 0 && System.nanoTime() - deadline < 0) {
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			remaining = sweep(System.nanoTime());
+		}
+		inFlight.clear();
+		unacknowledged.clear();
+		return new Result(Math.max(0, initial - remaining), remaining);
+	}
+
+	/**
+	 * Stops the timer that sweeps the completed exchanges.
+	 */
+	public void shutdown() {
+		sweeper.shutdown();
+	}
+
+	/**
+	 * Accepts requests again after a drain.
+	 */
+	public void resume() {
+		draining = false;
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * Returns the number of requests that were refused while draining.
+	 */
+	public long getRefused() {
+		return refused.sum();
+	}
+
+	/**
+	 * Returns the number of exchanges currently in flight.
+	 */
+	public int getInFlight() {
+		return sweep(System.nanoTime());
+	}
+
+	/*
+	 * Removes the completed exchanges and returns the number of remaining ones.
+	 */
+	private int sweep(long now) {
+		Iterator<Exchange> exchanges = inFlight.iterator();
+		while (exchanges.hasNext()) {
+			Exchange exchange = exchanges.next();
+			if (exchange.getResponse() != null || exchange.isComplete())
+				exchanges.remove();
+		}
+		Iterator<Long> sent = unacknowledged.values().iterator();
+		while (sent.hasNext()) {
+			if (now - sent.next() > ACK_WINDOW)
+				sent.remove();
+		}
+		return inFlight.size() + unacknowledged.size();
+	}
+
+	private static String key(InetAddress address, int port, int mid) {
+		return address.getHostAddress() + ":" + port + "#" + mid;
+	}
+
+	/**
+	 * The outcome of a drain.
+	 */
+	public static class Result {
+
+		private final int drained;
+		private final int aborted;
+
+		private Result(int drained, int aborted) {
+			this.drained = drained;
+			this.aborted = aborted;
+		}
+
+		public int getDrained() {
+			return drained;
+		}
+
+		public int getAborted() {
+			return aborted;
+		}
+
+		@Override
+		public String toString() {
+			return "Drained: " + drained + ", aborted: " + aborted;
+		}
+	}
+
+	/**
+	 * Tracks confirmable responses, i.e., separate responses and
+	 * notifications, until they are acknowledged or rejected.
+	 */
+	private class AcknowledgementInterceptor implements MessageInterceptor {
+
+		@Override
+		public void sendResponse(Response response) {
+			if (response.getType() == Type.CON && response.getDestination() != null)
+				unacknowledged.put(key(response.getDestination(), response.getDestinationPort(), response.getMID()), System.nanoTime());
+		}
+
+		@Override
+		public void receiveEmptyMessage(EmptyMessage message) {
+			if (!unacknowledged.isEmpty())
+				unacknowledged.remove(key(message.getSource(), message.getSourcePort(), message.getMID()));
+		}
+
+		@Override
+		public void sendRequest(Request request) { }
+
+		@Override
+		public void sendEmptyMessage(EmptyMessage message) { }
+
+		@Override
+		public void receiveRequest(Request request) { }
+
+		@Override
+		public void receiveResponse(Response response) { }
+	}
+}
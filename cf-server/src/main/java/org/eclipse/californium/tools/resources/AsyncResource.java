@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.resources;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+/**
+ * A resource whose handlers run on a completion executor instead of the
+ * executor of the server. A CON request is acknowledged right away, so that
+ * the client does not retransmit while the handler works, and the handler
+ * responds with a separate response, e.g., after slow computations or I/O.
+ * <p>
+ * Subclasses implement the handlers as usual and may respond from any
+ * thread, also after the handler has returned. The deferred responses are
+ * counted as pending until they are sent, and the time to the response is
+ * recorded in the metrics of the resource. If the executor refuses the
+ * work, the resource responds with 5.03. Subclasses select the requests that
+ * are worth the separate response with {@link #isAsync(Request)}, the others
+ * are handled on the executor of the server.
+ */
+public class AsyncResource extends InstrumentedResource {
+
+	/** The capacity of the queue of the default executor */
+	public static final int DEFAULT_QUEUE = 1024;
+
+	// bounded, so that work beyond the capacity is refused with 5.03 instead of piling up
+	private static final ExecutorService DEFAULT_EXECUTOR = new ThreadPoolExecutor(
+			Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+			0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE), new ThreadFactory() {
+				private final AtomicInteger index = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AsyncResource#" + index.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Executor executor;
+
+	public AsyncResource(String name) {
+		this(name, DEFAULT_EXECUTOR);
+	}
+
+	/**
+	 * Creates a resource whose handlers run on the specified executor.
+	 */
+	public AsyncResource(String name, Executor executor) {
+		super(name);
+		this.executor = executor;
+	}
+
+	@Override
+	protected void processRequest(final Exchange exchange) {
+		if (!isAsync(exchange.getRequest())) {
+			super.processRequest(exchange);
+			return;
+		}
+		defer();
+		exchange.sendAccept();
+		final AsyncExchange async = new AsyncExchange(exchange);
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						dispatch(async);
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Handler of " + getURI() + " failed", e);
+						if (!async.isResponded())
+							async.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			async.respond(ResponseCode.SERVICE_UNAVAILABLE);
+		}
+	}
+
+	/**
+	 * Returns whether the request is handled on the executor of this
+	 * resource with a separate response, by default true for all requests.
+	 */
+	protected boolean isAsync(Request request) {
+		return true;
+	}
+
+	private void dispatch(CoapExchange exchange) {
+		switch (exchange.getRequestCode()) {
+		case GET:
+			handleGET(exchange);
+			break;
+		case POST:
+			handlePOST(exchange);
+			break;
+		case PUT:
+			handlePUT(exchange);
+			break;
+		case DELETE:
+			handleDELETE(exchange);
+			break;
+		}
+	}
+
+	/**
+	 * Returns the shared executor of the resources that have none of their
+	 * own, with a thread per core and a queue of {@link #DEFAULT_QUEUE} tasks.
+	 */
+	public static ExecutorService getDefaultExecutor() {
+		return DEFAULT_EXECUTOR;
+	}
+
+	/**
+	 * The exchange passed to the handlers of a deferred request. It records
+	 * the completion once the response has been handed to the protocol stack,
+	 * no matter on which thread and when the handler responds.
+	 */
+	private class AsyncExchange extends CoapExchange {
+
+		private final Exchange exchange;
+		private final AtomicBoolean responded = new AtomicBoolean();
+
+		private AsyncExchange(Exchange exchange) {
+			super(exchange, AsyncResource.this);
+			this.exchange = exchange;
+		}
+
+		@Override
+		public void respond(Response response) {
+			try {
+				super.respond(response);
+			} finally {
+				if (responded.compareAndSet(false, true))
+					completed(exchange, response);
+			}
+		}
+
+		private boolean isResponded() {
+			return responded.get();
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.resources;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+/**
+ * This resource contains benchmark targets that each control one dimension
+ * of the cost of a request:
+ * <ul>
+ * <li><code>size?b=N</code> responds with N bytes from a pre-encoded payload</li>
+ * <li><code>delay?ms=N</code> responds after N ms with a separate response,
+ * without holding a thread</li>
+ * <li><code>cpu?us=N</code> does N microseconds of calibrated CPU work</li>
+ * <li><code>alloc?kb=N</code> allocates N kB in 1 kB arrays</li>
+ * </ul>
+ * All respond to GET and POST, so that a benchmark can combine them with
+ * confirmable and non-confirmable requests.
+ */
+public class BenchResource extends InstrumentedResource {
+
+	public static final int MAX_SIZE = 1024 * 1024;
+	public static final int MAX_DELAY = 60000; // [ms]
+	public static final int MAX_CPU = 10000000; // [us]
+	public static final int MAX_ALLOC = 64 * 1024; // [kB]
+
+	// the total bytes of the payloads that are kept pre-encoded
+	private static final long MAX_CACHED_BYTES = 16 * 1024 * 1024;
+	// estimated heap overhead of a cached payload, so that empty ones count
+	private static final int ENTRY_OVERHEAD = 64;
+
+	public BenchResource(String name) {
+		super(name);
+		getAttributes().setTitle("Benchmark targets with controlled size, delay, CPU, and allocation");
+		add(new SizeResource("size"));
+		add(new DelayResource("delay"));
+		add(new CpuResource("cpu"));
+		add(new AllocResource("alloc"));
+	}
+
+	/*
+	 * Returns the value of the query parameter, the default if absent, or -1
+	 * if malformed or out of [0, max], in which case 4.00 has been sent.
+	 */
+	private static int getParameter(CoapExchange exchange, String name, int value, int max) {
+		String prefix = name + "=";
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		for (String query : queries) {
+			if (query.startsWith(prefix)) {
+				try {
+					value = Integer.parseInt(query.substring(prefix.length()));
+				} catch (NumberFormatException e) {
+					value = -1;
+				}
+			}
+		}
+		if (value < 0 || value > max) {
+			exchange.respond(ResponseCode.BAD_REQUEST, name + " must be in [0, " + max + "]");
+			return -1;
+		}
+		return value;
+	}
+
+	/**
+	 * Responds with a payload of the requested size. The payloads are
+	 * encoded once per size until they take up 16 MB in total, and
+	 * further sizes are copied from a pattern per request.
+	 */
+	public static class SizeResource extends InstrumentedResource {
+
+		private final byte[] pattern = new byte[MAX_SIZE];
+		private final ConcurrentHashMap<Integer, byte[]> payloads = new ConcurrentHashMap<Integer, byte[]>();
+		private final AtomicLong cachedBytes = new AtomicLong();
+
+		public SizeResource(String name) {
+			super(name);
+			getAttributes().setTitle("Responds with ?b= bytes");
+			getAttributes().addContentType(MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+			for (int i = 0; i < pattern.length; i++)
+				pattern[i] = (byte) ('a' + i % 26);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			int size = getParameter(exchange, "b", 0, MAX_SIZE);
+			if (size < 0)
+				return;
+			byte[] payload = payloads.get(size);
+			if (payload == null) {
+				payload = Arrays.copyOf(pattern, size);
+				// reserve the bytes first, so that concurrent misses cannot exceed the bound
+				long cost = size + ENTRY_OVERHEAD;
+				if (cachedBytes.addAndGet(cost) > MAX_CACHED_BYTES || payloads.putIfAbsent(size, payload) != null)
+					cachedBytes.addAndGet(-cost);
+			}
+			exchange.respond(ResponseCode.CONTENT, payload, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+		}
+
+		@Override
+		public void handlePOST(CoapExchange exchange) {
+			handleGET(exchange);
+		}
+	}
+
+	/**
+	 * Responds after the requested delay with a separate response. The
+	 * requests wait on a timer, so that any number of them can be pending.
+	 */
+	public static class DelayResource extends InstrumentedResource {
+
+		private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "BenchDelay");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		public DelayResource(String name) {
+			super(name);
+			getAttributes().setTitle("Responds after ?ms= milliseconds");
+		}
+
+		@Override
+		public void handleGET(final CoapExchange exchange) {
+			final int delay = getParameter(exchange, "ms", 0, MAX_DELAY);
+			if (delay < 0)
+				return;
+			if (delay == 0) {
+				exchange.respond("delay 0 ms");
+				return;
+			}
+			defer();
+			exchange.accept();
+			TIMER.schedule(new Runnable() {
+				public void run() {
+					exchange.respond("delay " + delay + " ms");
+					responded(exchange.advanced());
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void handlePOST(CoapExchange exchange) {
+			handleGET(exchange);
+		}
+	}
+
+	/**
+	 * Burns the requested CPU time with a loop whose speed is calibrated
+	 * once, so that the work does not depend on the scheduling of the thread
+	 * as spinning on the clock would.
+	 */
+	public static class CpuResource extends InstrumentedResource {
+
+		// iterations of the loop per microsecond, calibrated on first use
+		private static volatile long iterationsPerMicro;
+
+		public CpuResource(String name) {
+			super(name);
+			getAttributes().setTitle("Does ?us= microseconds of CPU work");
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			int micros = getParameter(exchange, "us", 0, MAX_CPU);
+			if (micros < 0)
+				return;
+			long result = work(micros * getIterationsPerMicro());
+			// the result keeps the JIT from removing the loop
+			exchange.respond("cpu " + micros + " us (" + Long.toHexString(result & 0xFFFF) + ")");
+		}
+
+		@Override
+		public void handlePOST(CoapExchange exchange) {
+			handleGET(exchange);
+		}
+
+		/*
+		 * A xorshift generator, which neither allocates nor touches memory.
+		 */
+		private static long work(long iterations) {
+			long x = 88172645463325252L;
+			for (long i = 0; i < iterations; i++) {
+				x ^= x << 13;
+				x ^= x >>> 7;
+				x ^= x << 17;
+			}
+			return x;
+		}
+
+		private static long getIterationsPerMicro() {
+			long ipu = iterationsPerMicro;
+			if (ipu == 0) {
+				// warm up the JIT, then take the fastest of a few runs
+				long iterations = 1000000;
+				long best = Long.MAX_VALUE;
+				for (int run = 0; run < 10; run++) {
+					long start = System.nanoTime();
+					work(iterations);
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				ipu = Math.max(1, iterations * 1000 / Math.max(1, best));
+				iterationsPerMicro = ipu;
+			}
+			return ipu;
+		}
+	}
+
+	/**
+	 * Allocates the requested amount of memory in 1 kB arrays that are
+	 * written once, so that the allocation is neither removed nor free.
+	 */
+	public static class AllocResource extends InstrumentedResource {
+
+		public AllocResource(String name) {
+			super(name);
+			getAttributes().setTitle("Allocates ?kb= kilobytes");
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			int kilobytes = getParameter(exchange, "kb", 0, MAX_ALLOC);
+			if (kilobytes < 0)
+				return;
+			long sum = 0;
+			for (int i = 0; i < kilobytes; i++) {
+				byte[] chunk = new byte[1024];
+				chunk[i & 1023] = (byte) i;
+				sum += chunk[(i * 31) & 1023];
+			}
+			exchange.respond(ResponseCode.CONTENT, ("alloc " + kilobytes + " kB (" + sum + ")").getBytes(CoAP.UTF8_CHARSET),
+					MediaTypeRegistry.TEXT_PLAIN);
+		}
+
+		@Override
+		public void handlePOST(CoapExchange exchange) {
+			handleGET(exchange);
+		}
+	}
+}
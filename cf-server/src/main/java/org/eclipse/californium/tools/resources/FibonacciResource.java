@@ -15,37 +15,101 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.resources;
 
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
-import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
 
 /**
- * This resource recursively computes the Fibonacci numbers and therefore needs
- * a lot of computing power to respond to a request. Use the query ?n=20 to
- * compute the 20. Fibonacci number, e.g.: coap://localhost:5683/fibonacci?n=20.
+ * This resource computes the Fibonacci numbers and can be used as a
+ * controllable CPU load. Use the query ?n=20 to compute the 20. Fibonacci
+ * number, e.g.: coap://localhost:5683/fibonacci?n=20. The query ?mode=
+ * selects the algorithm:
+ * <ul>
+ * <li><code>recursive</code> (default): the naive exponential recursion,
+ * split into tasks of a {@link ForkJoinPool}, to burn CPU on purpose</li>
+ * <li><code>doubling</code>: fast doubling with {@link BigInteger}s in
+ * O(log n) steps for large n</li>
+ * <li><code>memo</code>: fast doubling with a bounded LRU cache of results</li>
+ * </ul>
+ * Heavy computations run on a dedicated pool and are answered with a separate
+ * response, so that they do not block the executor of the server for the
+ * other resources. If too many computations are pending, the resource
+ * responds with 5.03.
+ * <p>
+ * The results never change, so the resource is a good candidate for a
+ * {@link org.eclipse.californium.tools.cache.ResponseCache}; see
+ * {@link #setResponseCache}.
  */
-public class FibonacciResource extends CoapResource {
+public class FibonacciResource extends InstrumentedResource {
+
+	/** Largest n for the recursive mode, which takes seconds already */
+	public static final int MAX_RECURSIVE = 45;
+	/** Largest n for the other modes, about 20 kB of digits */
+	public static final int MAX_N = 100000;
+	public static final int MEMO_CAPACITY = 1024;
+	public static final int MAX_PENDING = 1024;
+
+	// below these n, a computation is answered directly
+	private static final int INLINE_RECURSIVE = 20;
+	private static final int INLINE_DOUBLING = 1000;
+	// below this n, a recursive task does not fork anymore
+	private static final int SEQUENTIAL_THRESHOLD = 25;
+
+	public enum Mode { RECURSIVE, DOUBLING, MEMO }
+
+	private final Pattern pattern;
+	private final ForkJoinPool pool;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Map<Integer, BigInteger> memo;
 
-	private Pattern pattern;
-	
 	public FibonacciResource(String name) {
+		this(name, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a Fibonacci resource.
+	 * 
+	 * @param name the name of the resource
+	 * @param parallelism the number of threads of the compute pool
+	 */
+	public FibonacciResource(String name, int parallelism) {
 		super(name);
-		this.pattern = Pattern.compile("n=\\d*");
+		this.pattern = Pattern.compile("(n|mode)=\\w*");
+		this.pool = new ForkJoinPool(parallelism);
+		this.memo = new LinkedHashMap<Integer, BigInteger>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, BigInteger> eldest) {
+				return size() > MEMO_CAPACITY;
+			}
+		};
 	}
 
 	@Override
-	public void handleGET(CoapExchange exchange) {
+	public void handleGET(final CoapExchange exchange) {
 		int n = 20;
+		Mode mode = Mode.RECURSIVE;
 		if (exchange.getRequestOptions().getURIQueryCount() > 0) {
 			try {
 				List<String> queries = exchange.getRequestOptions().getUriQuery();
 				for (String query:queries) {
 					if (pattern.matcher(query).matches()) {
-						n = Integer.parseInt(query.split("=")[1]);
+						String[] parts = query.split("=");
+						if (parts[0].equals("n"))
+							n = Integer.parseInt(parts[1]);
+						else
+							mode = Mode.valueOf(parts[1].toUpperCase());
 					}
 				}
 			} catch (Exception e) {
@@ -55,16 +119,142 @@ public class FibonacciResource extends CoapResource {
 			}
 		}
 		
-		int fib = fibonacci(n);
+		int max = mode == Mode.RECURSIVE ? MAX_RECURSIVE : MAX_N;
+		if (n < 0 || n > max) {
+			exchange.respond(ResponseCode.BAD_REQUEST, "n must be in [0, " + max + "] for mode " + mode.name().toLowerCase());
+			return;
+		}
+		
+		// light computations and cache hits are answered right away
+		if (mode == Mode.MEMO) {
+			BigInteger cached = getMemo(n);
+			if (cached != null) {
+				respond(exchange, n, cached);
+				return;
+			}
+		} else if (n <= (mode == Mode.RECURSIVE ? INLINE_RECURSIVE : INLINE_DOUBLING)) {
+			respond(exchange, n, compute(mode, n));
+			return;
+		}
+		
+		if (pending.incrementAndGet() > MAX_PENDING) {
+			pending.decrementAndGet();
+			exchange.respond(ResponseCode.SERVICE_UNAVAILABLE, "Too many computations pending");
+			return;
+		}
+		defer();
+		exchange.accept();
+		final int fn = n;
+		final Mode fmode = mode;
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						respond(exchange, fn, compute(fmode, fn));
+					} catch (RuntimeException e) {
+						exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR, e.getMessage());
+					} finally {
+						pending.decrementAndGet();
+					}
+					responded(exchange.advanced());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet();
+			exchange.respond(ResponseCode.SERVICE_UNAVAILABLE, "Compute pool shut down");
+			responded(exchange.advanced());
+		}
+	}
+	
+	private void respond(CoapExchange exchange, int n, BigInteger fib) {
 		exchange.respond("fibonacci("+n+") = "+fib);
 	}
 	
+	private BigInteger compute(Mode mode, int n) {
+		switch (mode) {
+		case RECURSIVE:
+			if (n <= SEQUENTIAL_THRESHOLD)
+				return BigInteger.valueOf(fibonacci(n));
+			// heavy n only run on the pool, where invoke() forks to its queues
+			return BigInteger.valueOf(new RecursiveFibonacci(n).invoke());
+		case MEMO:
+			BigInteger fib = doubling(n);
+			synchronized (memo) {
+				memo.put(n, fib);
+			}
+			return fib;
+		default:
+			return doubling(n);
+		}
+	}
+	
+	private BigInteger getMemo(int n) {
+		synchronized (memo) {
+			return memo.get(n);
+		}
+	}
+	
+	/**
+	 * Returns the number of computations that are queued or running.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+	
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+	
 	/**
 	 * Recursive Fibonacci algorithm
 	 */
-	private int fibonacci(int n) {
+	private static long fibonacci(int n) {
 		if (n <= 1) return n;
 		else return fibonacci(n-1) + fibonacci(n-2);
 	}
 	
+	/**
+	 * Fast doubling: F(2k) = F(k) * (2F(k+1) - F(k)) and
+	 * F(2k+1) = F(k)^2 + F(k+1)^2, from the most significant bit of n down.
+	 */
+	static BigInteger doubling(int n) {
+		BigInteger a = BigInteger.ZERO; // F(k)
+		BigInteger b = BigInteger.ONE;  // F(k+1)
+		for (int bit = Integer.highestOneBit(n); bit != 0; bit >>>= 1) {
+			BigInteger c = a.multiply(b.shiftLeft(1).subtract(a));
+			BigInteger d = a.multiply(a).add(b.multiply(b));
+			if ((n & bit) == 0) {
+				a = c;
+				b = d;
+			} else {
+				a = d;
+				b = c.add(d);
+			}
+		}
+		return a;
+	}
+	
+	/**
+	 * The naive recursion as fork/join tasks down to a sequential threshold.
+	 */
+	private static class RecursiveFibonacci extends RecursiveTask<Long> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int n;
+		
+		private RecursiveFibonacci(int n) {
+			this.n = n;
+		}
+		
+		@Override
+		protected Long compute() {
+			if (n <= SEQUENTIAL_THRESHOLD)
+				return fibonacci(n);
+			RecursiveFibonacci f1 = new RecursiveFibonacci(n - 1);
+			f1.fork();
+			long f2 = new RecursiveFibonacci(n - 2).compute();
+			return f2 + f1.join();
+		}
+	}
 }
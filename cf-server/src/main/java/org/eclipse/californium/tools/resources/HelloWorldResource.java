@@ -15,13 +15,12 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.resources;
 
-import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
 /**
  * This resource responds with a kind "hello world" to GET requests.
  */
-public class HelloWorldResource extends CoapResource {
+public class HelloWorldResource extends InstrumentedResource {
 
 	public HelloWorldResource(String name) {
 		super(name);
@@ -16,14 +16,19 @@
 package org.eclipse.californium.tools.resources;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.BlockOption;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.ResourceAttributes;
 
@@ -31,13 +36,25 @@ import org.eclipse.californium.core.server.resources.ResourceAttributes;
 /**
  * This resource responds with an image to GET requests. Use the ACCEPT option
  * to choose between the JPG and PNG file.
+ * <p>
+ * The images are loaded into memory once per content format and pre-split
+ * into the slices of all Block2 sizes, so that a request neither reads the
+ * file nor copies the payload. The resource answers Block2 requests itself.
+ * A changed file is detected by its modification time and length, which are
+ * checked at most every {@link #CHECK_INTERVAL} ms.
  */
-public class ImageResource extends CoapResource {
+public class ImageResource extends InstrumentedResource {
+
+	public static final long CHECK_INTERVAL = 1000; // [ms]
 
 	private String filePath = "src/main/resources/data/image/";
 	private String fileName = "image";
 	
 	private List<Integer> supported = new ArrayList<Integer>();
+	
+	private final ConcurrentHashMap<Integer, Variant> cache = new ConcurrentHashMap<Integer, Variant>();
+	private final int preferredSize;
+	private final int preferredSzx;
 
 	public ImageResource(String resourceIdentifier) {
 		super(resourceIdentifier);
@@ -54,6 +71,9 @@ public class ImageResource extends CoapResource {
 		}
 		
 		attributes.setMaximumSizeEstimate(18029);
+		
+		preferredSzx = BlockOption.size2Szx(NetworkConfig.getStandard().getInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE));
+		preferredSize = BlockOption.szx2Size(preferredSzx);
 	}
 
 	@Override
@@ -67,39 +87,94 @@ public class ImageResource extends CoapResource {
 			}
 		}
 		
-		String filename = filePath + fileName + "." + MediaTypeRegistry.toFileExtension(ct);
-
-		// load representation from file
-		System.out.println("Opening file "+filename+", "+new File(filename).getAbsolutePath());
-		File file = new File(filename);
-		
-		if (!file.exists()) {
+		Variant variant;
+		try {
+			variant = getVariant(ct);
+		} catch (IOException e) {
+			exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR, "I/O error");
+			return;
+		}
+		if (variant == null) {
 			exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR, "Image file not found");
 			return;
 		}
 		
-		// get length of file for buffer
-        int fileLength = (int)file.length();
-        byte[] fileData = new byte[fileLength];
-        
-        try
-        {
-			// open input stream from file
-        	FileInputStream fileIn = new FileInputStream(file);
-			// read file into byte array
-			fileIn.read(fileData);
-			fileIn.close();
-			
-			// create response
-			Response response = new Response(ResponseCode.CONTENT);
-			response.setPayload(fileData);
-			response.getOptions().setContentFormat(ct);
-
-			exchange.respond(response);
-			
-        } catch (Exception e) {
-			exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR, "I/O error");
-        }
+		// create response
+		Response response = new Response(ResponseCode.CONTENT);
+		response.getOptions().setContentFormat(ct);
+		
+		BlockOption block2 = exchange.getRequestOptions().getBlock2();
+		if (block2 == null && variant.payload.length <= preferredSize) {
+			response.setPayload(variant.payload);
+		} else {
+			// slice ourselves, early negotiation uses the preferred size
+			int szx = block2 == null ? preferredSzx : block2.getSzx();
+			int num = block2 == null ? 0 : block2.getNum();
+			byte[][] slices = variant.slices[szx];
+			if (num >= slices.length) {
+				exchange.respond(ResponseCode.BAD_OPTION, "Block out of range");
+				return;
+			}
+			response.setPayload(slices[num]);
+			response.getOptions().setBlock2(szx, num < slices.length - 1, num);
+			if (num == 0)
+				response.getOptions().setSize2(variant.payload.length);
+		}
+		exchange.respond(response);
 	}
 	
+	/*
+	 * Returns the cached variant of the content format, reloads it if the
+	 * file has changed, or returns null if the file does not exist.
+	 */
+	private Variant getVariant(int ct) throws IOException {
+		Variant variant = cache.get(ct);
+		long now = System.nanoTime();
+		if (variant != null) {
+			if (now - variant.checked < TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL))
+				return variant;
+			if (variant.file.lastModified() == variant.lastModified && variant.file.length() == variant.payload.length) {
+				variant.checked = now;
+				return variant;
+			}
+		}
+		
+		// concurrent reloads of the same file are harmless
+		File file = new File(filePath + fileName + "." + MediaTypeRegistry.toFileExtension(ct));
+		if (!file.exists()) {
+			cache.remove(ct);
+			return null;
+		}
+		LOGGER.info("Loading image " + file.getAbsolutePath());
+		variant = new Variant(file, now);
+		cache.put(ct, variant);
+		return variant;
+	}
+	
+	/**
+	 * An image file in memory, pre-split into the slices of every Block2 size.
+	 */
+	private static class Variant {
+		
+		private final File file;
+		private final long lastModified;
+		private final byte[] payload;
+		private final byte[][][] slices = new byte[7][][];
+		private volatile long checked;
+		
+		private Variant(File file, long now) throws IOException {
+			this.file = file;
+			this.lastModified = file.lastModified();
+			this.payload = Files.readAllBytes(file.toPath());
+			this.checked = now;
+			for (int szx = 0; szx < slices.length; szx++) {
+				int size = BlockOption.szx2Size(szx);
+				int count = Math.max(1, (payload.length + size - 1) / size);
+				slices[szx] = new byte[count][];
+				for (int num = 0; num < count; num++) {
+					slices[szx][num] = Arrays.copyOfRange(payload, num * size, Math.min(payload.length, (num + 1) * size));
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.resources;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.tools.cache.ResponseCache;
+import org.eclipse.californium.tools.jfr.Events;
+import org.eclipse.californium.tools.jfr.HandlerEvent;
+import org.eclipse.californium.tools.metrics.MetricsRegistry;
+import org.eclipse.californium.tools.metrics.ResourceMetrics;
+
+/**
+ * A resource whose handlers are measured: every request is counted by
+ * response class in the {@link MetricsRegistry#getDefault() metrics
+ * registry}, the run time of the handler is recorded in a histogram, and a
+ * {@link HandlerEvent} is emitted if a flight recording is active.
+ * <p>
+ * Subclasses implement the handlers as usual. Subclasses that handle the
+ * {@link Exchange} themselves override {@link #processRequest(Exchange)}
+ * instead of {@link #handleRequest(Exchange)}.
+ * <p>
+ * A resource with expensive GET handlers can opt into a
+ * {@link ResponseCache}. Identical requests are then answered from the
+ * cache without calling the handler, as long as the response is fresh.
+ * <p>
+ * Resources that respond after the handler has returned, e.g., with a
+ * separate response, call {@link #responded(Exchange)} once they have
+ * responded, so that the response is counted and cached. An
+ * {@link AsyncResource} does so by itself.
+ */
+public class InstrumentedResource extends CoapResource {
+
+	// set by defer() while the handler runs on this thread
+	private static final ThreadLocal<boolean[]> DEFERRED = new ThreadLocal<boolean[]>() {
+		@Override
+		protected boolean[] initialValue() {
+			return new boolean[1];
+		}
+	};
+
+	private volatile ResourceMetrics metrics;
+	private volatile ResponseCache cache;
+
+	public InstrumentedResource(String name) {
+		super(name);
+	}
+
+	public InstrumentedResource(String name, boolean visible) {
+		super(name, visible);
+	}
+
+	@Override
+	public void handleRequest(Exchange exchange) {
+		HandlerEvent event = Events.beginHandler();
+		long start = System.nanoTime();
+		ResponseCache cache = this.cache;
+		String key = cache == null ? null : ResponseCache.getKey(exchange.getRequest());
+		if (key != null) {
+			Response cached = cache.get(key);
+			getMetrics().recordCache(cached != null);
+			if (cached != null) {
+				exchange.sendResponse(cached);
+				getMetrics().record(cached, System.nanoTime() - start);
+				Events.commitHandler(event, getURI(), exchange);
+				return;
+			}
+		}
+		boolean[] deferred = DEFERRED.get();
+		deferred[0] = false;
+		try {
+			processRequest(exchange);
+		} catch (RuntimeException e) {
+			getMetrics().recordException(System.nanoTime() - start);
+			throw e;
+		}
+		// a deferred response may already be sent, but is recorded by responded()
+		Response response = deferred[0] ? null : exchange.getResponse();
+		deferred[0] = false;
+		if (key != null && response != null)
+			cache.put(key, response);
+		getMetrics().record(response, System.nanoTime() - start);
+		Events.commitHandler(event, getURI(), exchange);
+	}
+
+	/**
+	 * Handles the request, by default by calling the handler of its method.
+	 */
+	protected void processRequest(Exchange exchange) {
+		super.handleRequest(exchange);
+	}
+
+	/**
+	 * Declares that the current request is answered after the handler has
+	 * returned, and that the resource calls {@link #responded(Exchange)} then.
+	 * Must be called on the thread of the handler.
+	 */
+	protected void defer() {
+		DEFERRED.get()[0] = true;
+	}
+
+	/**
+	 * Records the deferred response of the exchange and stores it in the
+	 * response cache, if the resource has one. Resources that respond after
+	 * the handler has returned call this after responding.
+	 */
+	protected void responded(Exchange exchange) {
+		Response response = exchange.getResponse();
+		if (response != null)
+			completed(exchange, response);
+	}
+
+	/*
+	 * Records the deferred response, which has been sent for the exchange.
+	 */
+	void completed(Exchange exchange, Response response) {
+		long millis = System.currentTimeMillis() - exchange.getRequest().getTimestamp();
+		getMetrics().recordCompletion(response, TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis)));
+		ResponseCache cache = this.cache;
+		if (cache != null)
+			cache.put(ResponseCache.getKey(exchange.getRequest()), response);
+	}
+
+	/**
+	 * Sets the cache for the responses to GET requests, or null to disable
+	 * caching, which is the default.
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.cache = cache;
+	}
+
+	public ResponseCache getResponseCache() {
+		return cache;
+	}
+
+	/**
+	 * Returns the metrics of this resource, registered under its URI on first
+	 * use.
+	 */
+	protected ResourceMetrics getMetrics() {
+		ResourceMetrics metrics = this.metrics;
+		if (metrics == null) {
+			metrics = MetricsRegistry.getDefault().getResourceMetrics(getURI());
+			this.metrics = metrics;
+		}
+		return metrics;
+	}
+}
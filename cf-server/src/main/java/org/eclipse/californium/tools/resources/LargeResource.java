@@ -15,16 +15,60 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.resources;
 
-import org.eclipse.californium.core.CoapResource;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
 /**
  * This class implements a resource that returns a larger amount of
  * data on GET requests in order to test blockwise transfers.
+ * <p>
+ * Without query, the payload is the classic 512-byte text of 8 blocks. With
+ * <code>?size=N</code>, the payload has N bytes (up to {@link #MAX_SIZE}) and
+ * consists of 64-byte lines, so that clients can verify what they received:
+ * each line starts with its offset as 8 hex digits and a space, is filled
+ * with the characters of {@link #ALPHABET} starting at the index of the line
+ * modulo 62, and ends with a newline. The last line is cut at N bytes.
+ * <p>
+ * The resource answers Block2 requests itself. The blocks are generated on
+ * first use and then shared read-only by all requests for the same size and
+ * block size, so that a request neither builds a string nor copies the
+ * payload. At most {@link #MAX_CACHED_BYTES} of blocks are kept, including
+ * the estimated overhead of the block arrays, which dominates for small block
+ * sizes.
  */
-public class LargeResource extends CoapResource {
+public class LargeResource extends InstrumentedResource {
+
+	public static final int MAX_SIZE = 16 * 1024 * 1024;
+	public static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+	public static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	private static final int LINE = 64;
+	// estimated heap overhead of an array and of a reference to it
+	private static final int ARRAY_OVERHEAD = 16;
+	private static final int REFERENCE = 8;
+	// estimated heap overhead of a cache entry with its key and Blocks
+	private static final int ENTRY_OVERHEAD = 128;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(CoAP.UTF8_CHARSET);
+	private static final byte[] CHARS = ALPHABET.getBytes(CoAP.UTF8_CHARSET);
 
-	private String payload = getPayload();
+	private final byte[] payload = getPayload().getBytes(CoAP.UTF8_CHARSET);
+	private final int preferredSzx;
+	private final int preferredSize;
+
+	// blocks by size and szx in LRU order, guarded by itself
+	private final LinkedHashMap<Long, Blocks> cache;
+	private long cachedBytes;
 	
 	public LargeResource() {
 		this("large");
@@ -34,21 +78,159 @@ public class LargeResource extends CoapResource {
 		super(name);
 		getAttributes().setTitle("This is a large resource for testing block-wise transfer");
 		getAttributes().addResourceType("BlockWiseTransferTester");
+		getAttributes().addContentType(MediaTypeRegistry.TEXT_PLAIN);
+		
+		preferredSzx = BlockOption.size2Szx(NetworkConfig.getStandard().getInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE));
+		preferredSize = BlockOption.szx2Size(preferredSzx);
+		cache = new LinkedHashMap<Long, Blocks>(16, 0.75f, true);
 	}
 
 	@Override
 	public void handleGET(CoapExchange exchange) {
-		exchange.respond(payload);
+		respond(exchange);
 	}
 	
 	@Override
 	public void handlePOST(CoapExchange exchange) {
-		exchange.respond(payload);
+		respond(exchange);
 	}
 	
 	@Override
 	public void handlePUT(CoapExchange exchange) {
-		exchange.respond(payload);
+		respond(exchange);
+	}
+	
+	private void respond(CoapExchange exchange) {
+		int size = -1;
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		for (String query : queries) {
+			if (query.startsWith("size=")) {
+				try {
+					size = Integer.parseInt(query.substring(5));
+				} catch (NumberFormatException e) {
+					size = -2;
+				}
+				if (size < 0 || size > MAX_SIZE) {
+					exchange.respond(ResponseCode.BAD_REQUEST, "size must be in [0, " + MAX_SIZE + "]");
+					return;
+				}
+			}
+		}
+		int length = size < 0 ? payload.length : size;
+		
+		Response response = new Response(ResponseCode.CONTENT);
+		response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+		
+		BlockOption block2 = exchange.getRequestOptions().getBlock2();
+		if (block2 == null && length <= preferredSize) {
+			response.setPayload(getBlocks(size, preferredSzx).get(0));
+		} else {
+			// slice ourselves, early negotiation uses the preferred size
+			int szx = block2 == null ? preferredSzx : block2.getSzx();
+			int num = block2 == null ? 0 : block2.getNum();
+			Blocks blocks = getBlocks(size, szx);
+			if (num >= blocks.count()) {
+				exchange.respond(ResponseCode.BAD_OPTION, "Block out of range");
+				return;
+			}
+			response.setPayload(blocks.get(num));
+			response.getOptions().setBlock2(szx, num < blocks.count() - 1, num);
+			if (num == 0)
+				response.getOptions().setSize2(length);
+		}
+		exchange.respond(response);
+	}
+	
+	/*
+	 * Returns the blocks of the payload with the specified size, where -1
+	 * denotes the classic payload.
+	 */
+	private Blocks getBlocks(int size, int szx) {
+		Long key = ((long) size << 3) | szx;
+		synchronized (cache) {
+			Blocks blocks = cache.get(key);
+			if (blocks == null) {
+				blocks = size < 0 ? new Blocks(payload, payload.length, szx) : new Blocks(null, size, szx);
+				cachedBytes += blocks.footprint();
+				cache.put(key, blocks);
+				// evict the least recently used blocks, but never the new ones
+				Iterator<Map.Entry<Long, Blocks>> eldest = cache.entrySet().iterator();
+				while (cachedBytes > MAX_CACHED_BYTES && cache.size() > 1) {
+					cachedBytes -= eldest.next().getValue().footprint();
+					eldest.remove();
+				}
+			}
+			return blocks;
+		}
+	}
+	
+	/**
+	 * Fills the array with the bytes of the generated payload at the
+	 * specified offset.
+	 * 
+	 * @param block the array to fill
+	 * @param offset the offset of the first byte in the payload
+	 */
+	public static void generate(byte[] block, int offset) {
+		for (int i = 0; i < block.length; i++) {
+			int position = offset + i;
+			int line = position / LINE;
+			int column = position % LINE;
+			if (column < 8) {
+				block[i] = HEX[((line * LINE) >>> (4 * (7 - column))) & 0xF];
+			} else if (column == 8) {
+				block[i] = ' ';
+			} else if (column == LINE - 1) {
+				block[i] = '\n';
+			} else {
+				block[i] = CHARS[(line + column - 9) % CHARS.length];
+			}
+		}
+	}
+	
+	/**
+	 * The blocks of one payload for one block size, which are created on
+	 * first use and never modified afterwards.
+	 */
+	private static class Blocks {
+		
+		private final byte[] source;
+		private final int size;
+		private final int blockSize;
+		private final AtomicReferenceArray<byte[]> blocks;
+		
+		private Blocks(byte[] source, int size, int szx) {
+			this.source = source;
+			this.size = size;
+			this.blockSize = BlockOption.szx2Size(szx);
+			this.blocks = new AtomicReferenceArray<byte[]>(Math.max(1, (size + blockSize - 1) / blockSize));
+		}
+		
+		private int count() {
+			return blocks.length();
+		}
+		
+		/*
+		 * Returns the estimated heap size once all blocks are generated.
+		 */
+		private long footprint() {
+			return size + (long) count() * (ARRAY_OVERHEAD + REFERENCE) + ARRAY_OVERHEAD + ENTRY_OVERHEAD;
+		}
+		
+		private byte[] get(int num) {
+			byte[] block = blocks.get(num);
+			if (block == null) {
+				// concurrent requests may generate the same block, which is harmless
+				int offset = num * blockSize;
+				block = new byte[Math.min(blockSize, size - offset)];
+				if (source != null)
+					System.arraycopy(source, offset, block, 0, block.length);
+				else
+					generate(block, offset);
+				blocks.set(num, block);
+			}
+			return block;
+		}
 	}
 	
 	private String getPayload() {
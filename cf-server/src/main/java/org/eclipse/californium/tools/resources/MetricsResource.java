@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.resources;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.tools.metrics.MetricsRegistry;
+
+/**
+ * This resource exposes the metrics of the server. Use the ACCEPT option to
+ * choose the format: text/plain (default) for the Prometheus text format,
+ * application/json or application/cbor for a compact summary with quantiles.
+ */
+public class MetricsResource extends InstrumentedResource {
+
+	private final MetricsRegistry registry;
+
+	public MetricsResource(String name) {
+		this(name, MetricsRegistry.getDefault());
+	}
+
+	public MetricsResource(String name, MetricsRegistry registry) {
+		super(name);
+		this.registry = registry;
+		getAttributes().setTitle("Server metrics");
+		getAttributes().addContentType(MediaTypeRegistry.TEXT_PLAIN);
+		getAttributes().addContentType(MediaTypeRegistry.APPLICATION_JSON);
+		getAttributes().addContentType(MediaTypeRegistry.APPLICATION_CBOR);
+	}
+
+	@Override
+	public void handleGET(CoapExchange exchange) {
+		int ct = MediaTypeRegistry.TEXT_PLAIN;
+		if (exchange.getRequestOptions().hasAccept())
+			ct = exchange.getRequestOptions().getAccept();
+
+		switch (ct) {
+		case MediaTypeRegistry.TEXT_PLAIN:
+			exchange.respond(ResponseCode.CONTENT, registry.toPrometheus().getBytes(CoAP.UTF8_CHARSET), ct);
+			break;
+		case MediaTypeRegistry.APPLICATION_JSON:
+			exchange.respond(ResponseCode.CONTENT, registry.toJson().getBytes(CoAP.UTF8_CHARSET), ct);
+			break;
+		case MediaTypeRegistry.APPLICATION_CBOR:
+			exchange.respond(ResponseCode.CONTENT, registry.toCbor(), ct);
+			break;
+		default:
+			exchange.respond(new Response(ResponseCode.NOT_ACCEPTABLE));
+		}
+	}
+}
@@ -15,7 +15,8 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.resources;
 
-import org.eclipse.californium.core.CoapResource;
+import java.util.List;
+
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
@@ -26,8 +27,18 @@ import org.eclipse.californium.core.server.resources.Resource;
 /**
  * This resource responds with the data from a request in its payload. This
  * resource responds to GET, POST, PUT and DELETE requests.
+ * <p>
+ * By default, the response is a text dump of the request. Two modes measure
+ * the CoAP stack rather than the string formatting:
+ * <ul>
+ * <li><code>?raw</code> echoes the request payload unchanged with the same
+ * content format.
+ * <li><code>?cbor</code> echoes the header as a CBOR map with the integer
+ * keys 0 (code), 1 (type), 2 (MID), 3 (token), 4 (content format, if
+ * present), 5 (payload size), 6 (source address), and 7 (source port).
+ * </ul>
  */
-public class MirrorResource extends CoapResource {
+public class MirrorResource extends InstrumentedResource {
 
 	public MirrorResource(String name) {
 		super(name);
@@ -42,19 +53,115 @@ public class MirrorResource extends CoapResource {
 	 * This method uses the internal {@link Exchange} class for advanced handling.
 	 */
 	@Override
-	public void handleRequest(Exchange exchange) {
+	protected void processRequest(Exchange exchange) {
 		Request request = exchange.getRequest();
-		StringBuilder buffer = new StringBuilder();
-		buffer.append("resource ").append(getURI()).append(" received request")
-			.append("\n").append("Code: ").append(request.getCode())
-			.append("\n").append("Source: ").append(request.getSource()).append(":").append(request.getSourcePort())
-			.append("\n").append("Type: ").append(request.getType())
-			.append("\n").append("MID: ").append(request.getMID())
-			.append("\n").append("Token: ").append(request.getTokenString())
-			.append("\n").append(request.getOptions());
 		Response response = new Response(ResponseCode.CONTENT);
-		response.setPayload(buffer.toString());
-		response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+		
+		List<String> queries = request.getOptions().getUriQuery();
+		if (queries.contains("raw")) {
+			response.setPayload(request.getPayload());
+			if (request.getOptions().hasContentFormat())
+				response.getOptions().setContentFormat(request.getOptions().getContentFormat());
+		} else if (queries.contains("cbor")) {
+			response.setPayload(encodeHeader(request));
+			response.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_CBOR);
+		} else {
+			StringBuilder buffer = new StringBuilder();
+			buffer.append("resource ").append(getURI()).append(" received request")
+				.append("\n").append("Code: ").append(request.getCode())
+				.append("\n").append("Source: ").append(request.getSource()).append(":").append(request.getSourcePort())
+				.append("\n").append("Type: ").append(request.getType())
+				.append("\n").append("MID: ").append(request.getMID())
+				.append("\n").append("Token: ").append(request.getTokenString())
+				.append("\n").append(request.getOptions());
+			response.setPayload(buffer.toString());
+			response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+		}
 		exchange.sendResponse(response);
 	}
+	
+	/*
+	 * Encodes the header into an exactly sized array without intermediate
+	 * objects.
+	 */
+	private static byte[] encodeHeader(Request request) {
+		byte[] token = request.getToken();
+		byte[] address = request.getSource() == null ? new byte[0] : request.getSource().getAddress();
+		boolean hasFormat = request.getOptions().hasContentFormat();
+		int format = hasFormat ? request.getOptions().getContentFormat() : 0;
+		int code = request.getCode().value;
+		int type = request.getType().value;
+		int mid = request.getMID();
+		int size = request.getPayloadSize();
+		int port = request.getSourcePort();
+		
+		// each key is a single byte
+		int length = 1 + 7 + headLength(code) + headLength(type) + headLength(mid)
+				+ headLength(token.length) + token.length + headLength(size)
+				+ headLength(address.length) + address.length + headLength(port);
+		if (hasFormat)
+			length += 1 + headLength(format);
+		
+		byte[] data = new byte[length];
+		int offset = 0;
+		data[offset++] = (byte) (0xA0 | (hasFormat ? 8 : 7)); // map
+		data[offset++] = 0;
+		offset = writeHead(data, offset, 0x00, code);
+		data[offset++] = 1;
+		offset = writeHead(data, offset, 0x00, type);
+		data[offset++] = 2;
+		offset = writeHead(data, offset, 0x00, mid);
+		data[offset++] = 3;
+		offset = writeHead(data, offset, 0x40, token.length);
+		System.arraycopy(token, 0, data, offset, token.length);
+		offset += token.length;
+		if (hasFormat) {
+			data[offset++] = 4;
+			offset = writeHead(data, offset, 0x00, format);
+		}
+		data[offset++] = 5;
+		offset = writeHead(data, offset, 0x00, size);
+		data[offset++] = 6;
+		offset = writeHead(data, offset, 0x40, address.length);
+		System.arraycopy(address, 0, data, offset, address.length);
+		offset += address.length;
+		data[offset++] = 7;
+		writeHead(data, offset, 0x00, port);
+		return data;
+	}
+	
+	private static int headLength(int value) {
+		if (value < 24)
+			return 1;
+		else if (value < 0x100)
+			return 2;
+		else if (value < 0x10000)
+			return 3;
+		else
+			return 5;
+	}
+	
+	/*
+	 * Writes the initial byte of a CBOR item with the specified major type
+	 * and the non-negative argument.
+	 */
+	private static int writeHead(byte[] data, int offset, int major, int value) {
+		if (value < 24) {
+			data[offset++] = (byte) (major | value);
+		} else if (value < 0x100) {
+			data[offset++] = (byte) (major | 24);
+			data[offset++] = (byte) value;
+		} else if (value < 0x10000) {
+			data[offset++] = (byte) (major | 25);
+			data[offset++] = (byte) (value >> 8);
+			data[offset++] = (byte) value;
+		} else {
+			data[offset++] = (byte) (major | 26);
+			data[offset++] = (byte) (value >> 24);
+			data[offset++] = (byte) (value >> 16);
+			data[offset++] = (byte) (value >> 8);
+			data[offset++] = (byte) value;
+		}
+		return offset;
+	}
 }
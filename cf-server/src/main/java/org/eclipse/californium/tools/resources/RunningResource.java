@@ -15,45 +15,102 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.resources;
 
+import java.util.List;
+
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.tools.network.DrainingDeliverer;
 
 /**
  * This resource contains two subresources: shutdown and restart. Send a POST
  * request to subresource shutdown to stop the server. Send a POST request to
  * the subresource restart to restart the server.
+ * <p>
+ * Before the server stops, it is drained: new requests are refused with
+ * 5.03 and Max-Age, and the exchanges in flight may complete for up to
+ * {@link #DEFAULT_TIMEOUT} ms, or the time given by the query
+ * <code>?timeout=ms</code>. The response reports how many exchanges were
+ * drained and how many were aborted at the deadline.
  */
 public class RunningResource extends CoapResource {
 
+	public static final long DEFAULT_TIMEOUT = 5000; // [ms]
+	
+	// time for the final response to leave the connector
+	private static final long SEND_DELAY = 100; // [ms]
+
 	private CoapServer server;
 	
+	private final DrainingDeliverer deliverer;
+	
 	private int restartCount;
 	
 	public RunningResource(String name, CoapServer s) {
 		super(name);
 		this.server = s;
+		this.deliverer = new DrainingDeliverer(server.getMessageDeliverer());
+		server.setMessageDeliverer(deliverer);
 		
 		add(new CoapResource("shutdown") {
-			public void handlePOST(CoapExchange exchange) {
-				exchange.respond(ResponseCode.CHANGED);
-				sleep(100);
-				server.stop();
+			public void handlePOST(final CoapExchange exchange) {
+				final long timeout = getTimeout(exchange);
+				if (timeout < 0) {
+					exchange.respond(ResponseCode.BAD_REQUEST, "timeout must be a number of ms");
+					return;
+				}
+				exchange.accept();
+				new Thread("Shutdown") {
+					public void run() {
+						DrainingDeliverer.Result result = deliverer.drain(timeout, exchange.advanced());
+						exchange.respond(ResponseCode.CHANGED, result.toString());
+						RunningResource.this.sleep(SEND_DELAY);
+						server.stop();
+					}
+				}.start();
 			}
 		});
 		
 		add(new CoapResource("restart") {
-			public void handlePOST(CoapExchange exchange) {
-				restartCount++;
-				server.stop();
-				sleep(100);
-				server.start();
-				exchange.respond(ResponseCode.CHANGED, "Restart count: "+restartCount);
+			public void handlePOST(final CoapExchange exchange) {
+				final long timeout = getTimeout(exchange);
+				if (timeout < 0) {
+					exchange.respond(ResponseCode.BAD_REQUEST, "timeout must be a number of ms");
+					return;
+				}
+				exchange.accept();
+				new Thread("Restart") {
+					public void run() {
+						DrainingDeliverer.Result result = deliverer.drain(timeout, exchange.advanced());
+						restartCount++;
+						server.stop();
+						server.start();
+						deliverer.resume();
+						exchange.respond(ResponseCode.CHANGED, "Restart count: "+restartCount+", "+result);
+					}
+				}.start();
 			}
 		});
 	}
 	
+	/*
+	 * Returns the timeout of the query, the default, or -1 if malformed.
+	 */
+	private static long getTimeout(CoapExchange exchange) {
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		for (String query : queries) {
+			if (query.startsWith("timeout=")) {
+				try {
+					return Math.max(0, Long.parseLong(query.substring(8)));
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return DEFAULT_TIMEOUT;
+	}
+	
 	private void sleep(long ms) {
 		try {
 			Thread.sleep(ms);
@@ -15,53 +15,116 @@
  ******************************************************************************/
 package org.eclipse.californium.tools.resources;
 
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.eclipse.californium.core.CoapResource;
-import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.tools.metrics.ResourceMetrics;
+import org.eclipse.californium.tools.storage.StorageEngine;
 
 
 /**
- * This resource allows to store an arbitrary payload in any subresource. If the
- * target subresource does not yet exist it will be created. Therefore, such a
- * resource can be though off as having all possible children.
+ * This resource allows to store an arbitrary payload in any subresource. Such
+ * a resource can be though off as having all possible children.
  * <p>
  * <ul>
  * <li>A GET request receives the currently stored data within the target
- * resource.
- * <li>A POST request creates the specified resources from the payload.
+ * resource or, if there is none, the links to the stored subresources.
+ * <li>A POST request responds with the location of the specified resources
+ * from the payload.
  * <li>A PUT request stores the payload within the target resource.
- * <li>A DELETE request deletes the target resource.
+ * <li>A DELETE request deletes the target resource and its subresources.
  * </ul>
  * <p>
  * Assume a single instance of this resource called "storage". Assume a client
  * sends a PUT request with Payload "foo" to the URI storage/A/B/C. When the
- * resource storage receives the request, it creates the resources A, B and C
- * and delivers the request to the resource C. Resource C will process the PUT
- * request and stare "foo". If the client sends a consecutive GET request to the
- * URI storage/A/B/C, resource C will respond with the payload "foo".
+ * resource storage receives the request, it delivers the request to a
+ * transient resource for A/B/C. It will process the PUT request and store
+ * "foo". If the client sends a consecutive GET request to the URI
+ * storage/A/B/C, it will respond with the payload "foo".
+ * <p>
+ * The payloads are kept in a {@link StorageEngine}, which can persist them in
+ * a log and bounds their total size. The subresources are not added to the
+ * resource tree, so that lookups cannot grow it.
+ * <p>
+ * Every representation has an ETag. A GET with a matching ETag is answered
+ * with 2.03 Valid and without payload, and PUT and DELETE support If-Match
+ * and If-None-Match. The links to the subresources are cached until the
+ * store changes.
+ * <p>
+ * PUT and DELETE append to the log of the store and may compact it, so they
+ * run on the executor of {@link AsyncResource} with a separate response,
+ * while GET and POST are answered from memory right away.
  */
-public class StorageResource extends CoapResource {
+public class StorageResource extends AsyncResource {
 
-	private String content;
+	/** Maximum number of cached subtree listings */
+	public static final int MAX_LISTINGS = 1024;
+
+	private final StorageEngine store;
+	
+	// the metrics of all paths are kept by the root
+	private final StorageResource root;
+	
+	// shared by the root and its transient subresources
+	private final ConcurrentHashMap<String, Listing> listings;
 	
+	// the path below the root storage resource, empty for the root
+	private final String key;
+	
+	/**
+	 * Creates a storage resource that keeps up to
+	 * {@link StorageEngine#DEFAULT_MAX_BYTES} in memory.
+	 */
 	public StorageResource(String name) {
+		this(name, new StorageEngine(StorageEngine.DEFAULT_MAX_BYTES));
+	}
+	
+	public StorageResource(String name, StorageEngine store) {
+		this(name, store, "", new ConcurrentHashMap<String, Listing>(), null);
+	}
+	
+	private StorageResource(String name, StorageEngine store, String key, ConcurrentHashMap<String, Listing> listings, StorageResource root) {
 		super(name);
+		this.store = store;
+		this.key = key;
+		this.listings = listings;
+		this.root = root == null ? this : root;
 	}
 	
 	@Override
 	public void handleGET(CoapExchange exchange) {
-		if (content != null) {
-			exchange.respond(content);
+		StorageEngine.Entry entry = store.get(key);
+		byte[] etag;
+		byte[] payload;
+		int ct;
+		if (entry != null) {
+			etag = entry.getETag();
+			payload = entry.getValue();
+			ct = entry.getContentFormat();
+		} else {
+			Listing listing = getListing();
+			etag = listing.etag;
+			payload = listing.payload;
+			ct = MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+		}
+		
+		exchange.setETag(etag);
+		if (contains(exchange.getRequestOptions().getETags(), etag)) {
+			exchange.respond(ResponseCode.VALID);
 		} else {
-			String subtree = LinkFormat.serializeTree(this);
-			exchange.respond(ResponseCode.CONTENT, subtree, MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+			exchange.respond(ResponseCode.CONTENT, payload, ct);
 		}
 	}
 
@@ -69,56 +132,176 @@ public class StorageResource extends CoapResource {
 	public void handlePOST(CoapExchange exchange) {
 		String payload = exchange.getRequestText();
 		String[] parts = payload.split("\\?");
-		String[] path = parts[0].split("/");
-		Resource resource = create(new LinkedList<String>(Arrays.asList(path)));
+		StringBuilder location = new StringBuilder(getURI());
+		for (String segment : parts[0].split("/")) {
+			if (!segment.isEmpty())
+				location.append('/').append(segment);
+		}
 		
+		// all subresources exist implicitly, nothing needs to be stored
 		Response response = new Response(ResponseCode.CREATED);
-		response.getOptions().setLocationPath(resource.getURI());
+		response.getOptions().setLocationPath(location.toString());
 		exchange.respond(response);
 	}
 
 	@Override
 	public void handlePUT(CoapExchange exchange) {
-		content = exchange.getRequestText();
-		exchange.respond(ResponseCode.CHANGED);
+		int ct = exchange.getRequestOptions().hasContentFormat()
+				? exchange.getRequestOptions().getContentFormat()
+				: MediaTypeRegistry.TEXT_PLAIN;
+		byte[] payload = exchange.getRequestPayload();
+		StorageEngine.Entry entry = store.get(key);
+		if (!checkPreconditions(exchange.getRequestOptions(), entry)) {
+			exchange.respond(ResponseCode.PRECONDITION_FAILED);
+			return;
+		}
+		try {
+			switch (store.put(key, payload, ct, entry)) {
+			case STORED:
+				exchange.setETag(StorageEngine.etag(ct, payload));
+				exchange.respond(ResponseCode.CHANGED);
+				break;
+			case FULL:
+				exchange.respond(ResponseCode.REQUEST_ENTITY_TOO_LARGE, "Storage full");
+				break;
+			default:
+				// changed concurrently since the preconditions were checked
+				exchange.respond(ResponseCode.PRECONDITION_FAILED);
+			}
+		} catch (IllegalArgumentException e) {
+			exchange.respond(ResponseCode.BAD_REQUEST, e.getMessage());
+		} catch (IOException e) {
+			LOGGER.warning("Cannot store " + key + ": " + e);
+			exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR, "Storage error");
+		}
 	}
 
 	@Override
 	public void handleDELETE(CoapExchange exchange) {
-		this.delete();
-		exchange.respond(ResponseCode.DELETED);
+		StorageEngine.Entry entry = store.get(key);
+		if (!checkPreconditions(exchange.getRequestOptions(), entry)) {
+			exchange.respond(ResponseCode.PRECONDITION_FAILED);
+			return;
+		}
+		try {
+			if (store.delete(key, entry) < 0) {
+				exchange.respond(ResponseCode.PRECONDITION_FAILED);
+			} else {
+				exchange.respond(ResponseCode.DELETED);
+			}
+		} catch (IOException e) {
+			LOGGER.warning("Cannot delete " + key + ": " + e);
+			exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR, "Storage error");
+		}
+	}
+
+	/**
+	 * Defers the requests that write to the store.
+	 */
+	@Override
+	protected boolean isAsync(Request request) {
+		return request.getCode() == Code.PUT || request.getCode() == Code.DELETE;
 	}
 
 	/**
-	 * Find the requested child. If the child does not exist yet, create it.
+	 * Returns a transient resource for the child, which shares the store.
 	 */
 	@Override
 	public Resource getChild(String name) {
-		Resource resource = super.getChild(name);
-		if (resource == null) {
-			resource = new StorageResource(name);
-			add(resource);
+		StorageResource child = new StorageResource(name, store, key.isEmpty() ? name : key + "/" + name, listings, root);
+		child.setParent(this);
+		return child;
+	}
+	
+	/**
+	 * Returns the metrics of the root, so that the transient subresources do
+	 * not register a metric per path.
+	 */
+	@Override
+	protected ResourceMetrics getMetrics() {
+		return root == this ? super.getMetrics() : root.getMetrics();
+	}
+	
+	/*
+	 * Evaluates If-Match and If-None-Match against the current entry. An empty
+	 * If-Match matches any existing entry.
+	 */
+	private static boolean checkPreconditions(OptionSet options, StorageEngine.Entry entry) {
+		if (options.getIfMatchCount() > 0) {
+			if (entry == null)
+				return false;
+			boolean match = false;
+			for (byte[] etag : options.getIfMatch()) {
+				if (etag.length == 0 || Arrays.equals(etag, entry.getETag()))
+					match = true;
+			}
+			if (!match)
+				return false;
+		}
+		return !(options.hasIfNoneMatch() && entry != null);
+	}
+	
+	private static boolean contains(List<byte[]> etags, byte[] etag) {
+		for (byte[] candidate : etags) {
+			if (Arrays.equals(candidate, etag))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Returns the links to the subresources, serialized again only if the
+	 * store has changed.
+	 */
+	private Listing getListing() {
+		// read the version first, so that a concurrent change invalidates the result
+		long version = store.getVersion();
+		Listing listing = listings.get(key);
+		if (listing == null || listing.version != version) {
+			byte[] payload = serializeSubtree().getBytes(CoAP.UTF8_CHARSET);
+			listing = new Listing(version, payload,
+					StorageEngine.etag(MediaTypeRegistry.APPLICATION_LINK_FORMAT, payload));
+			if (listings.size() >= MAX_LISTINGS)
+				listings.clear();
+			listings.put(key, listing);
+		}
+		return listing;
+	}
+	
+	/*
+	 * Serializes the links to the stored subresources.
+	 */
+	private String serializeSubtree() {
+		String base = getURI();
+		int offset = key.isEmpty() ? 0 : key.length() + 1;
+		StringBuilder buffer = new StringBuilder();
+		for (Map.Entry<String, StorageEngine.Entry> e : store.getSubtree(key).entrySet()) {
+			if (buffer.length() > 0)
+				buffer.append(',');
+			buffer.append('<').append(base).append('/').append(e.getKey(), offset, e.getKey().length())
+				.append(">;ct=").append(e.getValue().getContentFormat());
 		}
-		return resource;
+		return buffer.toString();
+	}
+	
+	public StorageEngine getStore() {
+		return store;
 	}
 	
 	/**
-	 * Create a resource hierarchy with according to the specified path.
-	 * @param path the path
-	 * @return the lowest resource from the hierarchy
+	 * A serialized subtree and the version of the store it was taken from.
 	 */
-	private Resource create(LinkedList<String> path) {
-		String segment;
-		do {
-			if (path.size() == 0)
-				return this;
+	private static class Listing {
 		
-			segment = path.removeFirst();
-		} while (segment.isEmpty() || segment.equals("/"));
+		private final long version;
+		private final byte[] payload;
+		private final byte[] etag;
 		
-		StorageResource resource = new StorageResource(segment);
-		add(resource);
-		return resource.create(path);
+		private Listing(long version, byte[] payload, byte[] etag) {
+			this.version = version;
+			this.payload = payload;
+			this.etag = etag;
+		}
 	}
 
 }
@@ -0,0 +1,476 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ ******************************************************************************/
+package org.eclipse.californium.tools.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.eclipse.californium.core.Utils;
+
+/**
+ * A concurrent, path-indexed key-value store for the storage resource. All
+ * entries are kept in a sorted map, so that reads never block and a subtree
+ * is a range of keys. If a log file is given, every change is appended to a
+ * memory-mapped log, which is replayed on start. A background task forces
+ * the log to disk every {@link #SYNC_INTERVAL} ms and compacts it when more
+ * than half of it is garbage. If the log is full, the writer compacts it
+ * right away.
+ * <p>
+ * Every entry has an ETag, a 64-bit FNV-1a hash of its content format and
+ * value, which stays the same across restarts. Conditional writes compare
+ * and set the entry under the lock of the store.
+ * <p>
+ * The store is bounded by the total size of its entries including the
+ * record overhead, so that a write-heavy benchmark cannot exhaust the memory
+ * of the server.
+ * <p>
+ * Log records have the format
+ * <code>op(1) contentFormat(4) pathLength(2) valueLength(4) path value crc(4)</code>.
+ * The op byte is written last, and a record with a wrong CRC ends the log, so
+ * that a torn write at a crash only loses the last change.
+ */
+public class StorageEngine implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(StorageEngine.class.getCanonicalName());
+
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+	public static final int DEFAULT_LOG_SIZE = 64 * 1024 * 1024;
+	public static final long SYNC_INTERVAL = 1000; // [ms]
+	public static final int MAX_PATH_LENGTH = 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x43665354; // "CfST"
+	private static final int HEADER = 8;
+	private static final int RECORD_OVERHEAD = 1 + 4 + 2 + 4 + 4;
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+	private final long maxBytes;
+	private final File file;
+	private final int logSize;
+	private final CRC32 crc = new CRC32();
+	private ScheduledExecutorService maintenance;
+	private volatile long version;
+
+	// guarded by this
+	private MappedByteBuffer log;
+	private int position;
+	private long size;
+	private long garbage;
+
+	/**
+	 * Creates a store that only lives in memory.
+	 */
+	public StorageEngine(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.file = null;
+		this.logSize = 0;
+	}
+
+	/**
+	 * Creates a store that is persisted to the specified log file. An existing
+	 * log is replayed.
+	 * 
+	 * @param file the log file
+	 * @param maxBytes the maximum total size of all entries
+	 * @param logSize the size of the mapped log, must exceed maxBytes
+	 * @throws IOException if the log cannot be opened
+	 */
+	public StorageEngine(File file, long maxBytes, int logSize) throws IOException {
+		if (logSize <= maxBytes + HEADER)
+			throw new IllegalArgumentException("log size must exceed the maximum size");
+		this.maxBytes = maxBytes;
+		this.file = file;
+		this.logSize = logSize;
+		this.log = map(file);
+		replay();
+
+		maintenance = Executors.newSingleThreadScheduledExecutor(new Utils.DaemonThreadFactory("Storage#"));
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				maintain();
+			}
+		}, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the entry at the path or null.
+	 */
+	public Entry get(String path) {
+		return entries.get(path);
+	}
+
+	/**
+	 * Returns the entries below the path, but not the path itself, in the
+	 * order of their paths.
+	 */
+	public NavigableMap<String, Entry> getSubtree(String path) {
+		if (path.isEmpty())
+			return entries.tailMap(path, false);
+		String prefix = path.endsWith("/") ? path : path + "/";
+		// '0' is the character after '/'
+		return entries.subMap(prefix, true, prefix.substring(0, prefix.length() - 1) + '0', false);
+	}
+
+	/**
+	 * Stores the value at the path.
+	 * 
+	 * @return false if the store is full
+	 * @throws IOException if the log cannot be written
+	 */
+	public synchronized boolean put(String path, byte[] value, int contentFormat) throws IOException {
+		return put(path, value, contentFormat, entries.get(path)) == Result.STORED;
+	}
+
+	/**
+	 * Stores the value at the path if the current entry is still the expected
+	 * one.
+	 * 
+	 * @param expected the entry the caller has checked, or null if there was
+	 *            none
+	 * @return the result
+	 * @throws IOException if the log cannot be written
+	 */
+	public synchronized Result put(String path, byte[] value, int contentFormat, Entry expected) throws IOException {
+		Entry old = entries.get(path);
+		if (old != expected)
+			return Result.CONFLICT;
+		byte[] key = path.getBytes(UTF8);
+		if (key.length > MAX_PATH_LENGTH)
+			throw new IllegalArgumentException("path too long");
+		int record = RECORD_OVERHEAD + key.length + value.length;
+		long freed = old == null ? 0 : old.record;
+		if (size - freed + record > maxBytes)
+			return Result.FULL;
+		if (log != null)
+			append(PUT, key, value, contentFormat, record);
+		Entry entry = new Entry(value, contentFormat, record);
+		entries.put(path, entry);
+		size += record - freed;
+		garbage += freed;
+		version++;
+		return Result.STORED;
+	}
+
+	/**
+	 * Deletes the entry at the path and all entries below.
+	 * 
+	 * @return the number of deleted entries
+	 * @throws IOException if the log cannot be written
+	 */
+	public synchronized int delete(String path) throws IOException {
+		return delete(path, entries.get(path));
+	}
+
+	/**
+	 * Deletes the entry at the path and all entries below if the entry at the
+	 * path is still the expected one.
+	 * 
+	 * @param expected the entry the caller has checked, or null if there was
+	 *            none
+	 * @return the number of deleted entries or -1 if the entry has changed
+	 * @throws IOException if the log cannot be written
+	 */
+	public synchronized int delete(String path, Entry expected) throws IOException {
+		Entry old = entries.get(path);
+		if (old != expected)
+			return -1;
+		int count = 0;
+		if (old != null) {
+			remove(path, old);
+			count++;
+		}
+		Iterator<Map.Entry<String, Entry>> it = getSubtree(path).entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			remove(e.getKey(), e.getValue());
+			count++;
+		}
+		return count;
+	}
+
+	private void remove(String path, Entry old) throws IOException {
+		if (log != null) {
+			byte[] key = path.getBytes(UTF8);
+			int record = RECORD_OVERHEAD + key.length;
+			append(DELETE, key, new byte[0], 0, record);
+			garbage += record;
+		}
+		entries.remove(path);
+		size -= old.record;
+		garbage += old.record;
+		version++;
+	}
+
+	private void append(byte op, byte[] key, byte[] value, int contentFormat, int record) throws IOException {
+		if (position + record > log.capacity()) {
+			compact();
+			if (position + record > log.capacity())
+				throw new IOException("Storage log full");
+		}
+		write(log, position, op, key, value, contentFormat);
+		position += record;
+	}
+
+	private void write(MappedByteBuffer buffer, int offset, byte op, byte[] key, byte[] value, int contentFormat) {
+		buffer.position(offset + 1);
+		buffer.putInt(contentFormat);
+		buffer.putShort((short) key.length);
+		buffer.putInt(value.length);
+		buffer.put(key);
+		buffer.put(value);
+		buffer.putInt(checksum(op, contentFormat, key, value));
+		// a record is valid as soon as its op is set
+		buffer.put(offset, op);
+	}
+
+	private int checksum(byte op, int contentFormat, byte[] key, byte[] value) {
+		crc.reset();
+		crc.update(op);
+		crc.update(contentFormat >>> 24);
+		crc.update(contentFormat >>> 16);
+		crc.update(contentFormat >>> 8);
+		crc.update(contentFormat);
+		crc.update(key);
+		crc.update(value);
+		return (int) crc.getValue();
+	}
+
+	private MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			boolean fresh = raf.length() == 0;
+			if (raf.length() < logSize)
+				raf.setLength(logSize);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			if (fresh) {
+				buffer.putInt(0, MAGIC);
+			} else if (buffer.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a storage log");
+			}
+			return buffer;
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+	}
+
+	private synchronized void replay() throws IOException {
+		int offset = HEADER;
+		int count = 0;
+		while (offset + RECORD_OVERHEAD <= log.capacity()) {
+			byte op = log.get(offset);
+			if (op != PUT && op != DELETE)
+				break;
+			log.position(offset + 1);
+			int contentFormat = log.getInt();
+			int keyLength = log.getShort() & 0xFFFF;
+			int valueLength = log.getInt();
+			int record = RECORD_OVERHEAD + keyLength + valueLength;
+			if (keyLength > MAX_PATH_LENGTH || valueLength < 0 || offset + record > log.capacity())
+				break;
+			byte[] key = new byte[keyLength];
+			byte[] value = new byte[valueLength];
+			log.get(key);
+			log.get(value);
+			if (log.getInt() != checksum(op, contentFormat, key, value))
+				break;
+
+			String path = new String(key, UTF8);
+			Entry old = op == PUT ? entries.put(path, new Entry(value, contentFormat, record)) : entries.remove(path);
+			if (old != null) {
+				size -= old.record;
+				garbage += old.record;
+			}
+			if (op == PUT)
+				size += record;
+			else
+				garbage += record;
+			offset += record;
+			count++;
+		}
+		position = offset;
+
+		// clear a torn record, so that it cannot hide later records
+		if (position < log.capacity() && log.get(position) != 0) {
+			LOGGER.warning("Discarding corrupt tail of storage log at " + position);
+			for (int i = position; i < log.capacity(); i++)
+				log.put(i, (byte) 0);
+		}
+		LOGGER.info("Replayed " + count + " records, " + entries.size() + " entries from " + file);
+	}
+
+	/**
+	 * Rewrites the log with only the current entries and replaces the old log
+	 * atomically.
+	 * 
+	 * @throws IOException if the compacted log cannot be written
+	 */
+	public synchronized void compact() throws IOException {
+		if (log == null)
+			return;
+		File tmp = new File(file.getPath() + ".compact");
+		Files.deleteIfExists(tmp.toPath());
+		MappedByteBuffer compacted = map(tmp);
+		int offset = HEADER;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			write(compacted, offset, PUT, e.getKey().getBytes(UTF8), entry.value, entry.contentFormat);
+			offset += entry.record;
+		}
+		compacted.force();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOGGER.fine("Compacted storage log from " + position + " to " + offset + " bytes");
+		log = compacted;
+		position = offset;
+		garbage = 0;
+	}
+
+	/**
+	 * Forces the log to disk.
+	 */
+	public synchronized void sync() {
+		if (log != null)
+			log.force();
+	}
+
+	private void maintain() {
+		try {
+			synchronized (this) {
+				if (log == null)
+					return;
+				if (garbage > size && garbage > logSize / 4)
+					compact();
+				else
+					sync();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Storage maintenance failed", e);
+		}
+	}
+
+	/**
+	 * Forces the log to disk and stops the maintenance.
+	 */
+	@Override
+	public synchronized void close() {
+		if (maintenance != null)
+			maintenance.shutdown();
+		sync();
+		log = null;
+	}
+
+	/**
+	 * Returns the total size of all entries including the record overhead.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the number of log bytes of overwritten and deleted entries.
+	 */
+	public synchronized long getGarbage() {
+		return garbage;
+	}
+
+	public int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns a number that changes with every change of the store, e.g., to
+	 * invalidate caches.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the 64-bit FNV-1a hash of the data as ETag.
+	 */
+	public static byte[] etag(int contentFormat, byte[] data) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ (contentFormat & 0xFF)) * 0x100000001b3L;
+		hash = (hash ^ ((contentFormat >>> 8) & 0xFF)) * 0x100000001b3L;
+		for (byte b : data)
+			hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+		byte[] etag = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			etag[i] = (byte) hash;
+			hash >>>= 8;
+		}
+		return etag;
+	}
+
+	/**
+	 * The result of a conditional write.
+	 */
+	public enum Result {
+		STORED, FULL, CONFLICT
+	}
+
+	/**
+	 * A stored value. The value must not be modified.
+	 */
+	public static class Entry {
+
+		private final byte[] value;
+		private final int contentFormat;
+		private final int record;
+		private final byte[] etag;
+
+		private Entry(byte[] value, int contentFormat, int record) {
+			this.value = value;
+			this.contentFormat = contentFormat;
+			this.record = record;
+			this.etag = etag(contentFormat, value);
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		public int getContentFormat() {
+			return contentFormat;
+		}
+
+		/**
+		 * Returns the ETag of the entry. It must not be modified.
+		 */
+		public byte[] getETag() {
+			return etag;
+		}
+	}
+}
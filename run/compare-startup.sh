@@ -0,0 +1,93 @@
+#!/bin/sh
+###############################################################################
+# Compares the startup of the JVM and the native build of a CoAP server, e.g.,
+# of cf-server or cf-rd: the time until the first response to a GET of
+# /.well-known/core, the resident memory then, and the resident memory and
+# its peak after a number of requests.
+#
+# Usage: compare-startup.sh [-p PORT] [-n REQUESTS] COMMAND...
+#
+# Each COMMAND is one quoted command line that starts a server on PORT
+# (default 5683), for example:
+#
+#   ./compare-startup.sh \
+#     "java -jar cf-server-1.1.0-SNAPSHOT-jar-with-dependencies.jar" \
+#     "../cf-server/target/cf-server"
+#
+# Requires Linux for /proc and python3 for the CoAP probe.
+###############################################################################
+
+PORT=5683
+REQUESTS=1000
+while [ $# -gt 0 ]; do
+	case "$1" in
+		-p) PORT=$2; shift 2 ;;
+		-n) REQUESTS=$2; shift 2 ;;
+		*) break ;;
+	esac
+done
+if [ $# -eq 0 ]; then
+	echo "Usage: $0 [-p PORT] [-n REQUESTS] COMMAND..." >&2
+	exit 1
+fi
+
+# sends CON GETs until the first response, prints its time since $1 in ms,
+# and then waits for $2 more responses in lockstep
+probe() {
+	python3 - "$1" "$2" "$PORT" <<'PYTHON'
+import socket, sys, time
+start, requests, port = int(sys.argv[1]), int(sys.argv[2]), int(sys.argv[3])
+s = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+s.settimeout(0.01)
+def get(mid):
+	return bytes([0x40, 0x01, mid >> 8, mid & 0xFF, 0xBB]) + b'.well-known' + bytes([0x04]) + b'core'
+mid = 0
+deadline = time.time() + 60
+while time.time() < deadline:
+	mid = (mid + 1) & 0xFFFF
+	s.sendto(get(mid), ('127.0.0.1', port))
+	try:
+		s.recvfrom(2048)
+		break
+	except socket.timeout:
+		pass
+else:
+	sys.exit("no response")
+print((time.time_ns() - start) // 1000000, flush=True)
+sys.stdin.readline() # the memory at the first response is taken now
+s.settimeout(5)
+for i in range(requests):
+	mid = (mid + 1) & 0xFFFF
+	s.sendto(get(mid), ('127.0.0.1', port))
+	s.recvfrom(2048)
+PYTHON
+}
+
+memory() {
+	awk -v key="$2:" '$1 == key { print int($2 / 1024) }' /proc/$1/status
+}
+
+printf "%-60s %10s %10s %12s %12s\n" "COMMAND" "FIRST(ms)" "RSS(MB)" "RSS@$REQUESTS(MB)" "PEAK(MB)"
+for COMMAND in "$@"; do
+	START=$(date +%s%N)
+	$COMMAND > /dev/null 2>&1 &
+	PID=$!
+	FIFO=$(mktemp -u)
+	mkfifo "$FIFO"
+	probe "$START" "$REQUESTS" < "$FIFO" > "$FIFO.out" &
+	PROBE=$!
+	exec 3> "$FIFO"
+	while [ ! -s "$FIFO.out" ] && kill -0 $PROBE 2> /dev/null; do
+		sleep 0.01
+	done
+	FIRST=$(cat "$FIFO.out")
+	RSS=$(memory $PID VmRSS)
+	echo >&3
+	wait $PROBE
+	printf "%-60.60s %10s %10s %12s %12s\n" "$COMMAND" "${FIRST:-n/a}" "$RSS" "$(memory $PID VmRSS)" "$(memory $PID VmHWM)"
+	exec 3>&-
+	kill $PID 2> /dev/null
+	wait $PID 2> /dev/null
+	rm -f "$FIFO" "$FIFO.out"
+	sleep 1
+done